@@ -0,0 +1,159 @@
+package benchmarks;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates the files the benchmarks extract. The same seed gives the same files, so runs are comparable.
+ */
+public class Corpus {
+    private final static String[] WORDS = ("the of and to in is was for on that with as by at from his it an were "
+            + "are which this be or has had not but first one their its new after who they have her she two been "
+            + "other when there all during into school time may years more most only over city some world would "
+            + "where later up such used many can state about national out known university united then made "
+            + "emirates invoice shipment passenger baggage flight schedule report quarterly revenue contract").split(" ");
+
+    private final Random random;
+
+    public Corpus(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Words separated by spaces and, every few sentences, line breaks
+     */
+    public String text(int chars) {
+        StringBuilder text = new StringBuilder(chars + 16);
+        int sentence = 0;
+        while (text.length() < chars) {
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+            if (++sentence % 12 == 0) {
+                text.append(sentence % 60 == 0 ? ".\n" : ". ");
+            } else {
+                text.append(' ');
+            }
+        }
+        text.setLength(chars);
+        return text.toString();
+    }
+
+    public Path textFile(Path dir, String name, int chars) throws IOException {
+        Path file = dir.resolve(name);
+        Files.write(file, text(chars).getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    /**
+     * A zip of text entries, every tenth one in a subdirectory
+     */
+    public Path zipFile(Path dir, String name, int entries, int entryChars) throws IOException {
+        Path file = dir.resolve(name);
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(file))) {
+            for (int i = 0; i < entries; i++) {
+                zip.putNextEntry(new ZipEntry((i % 10 == 0 ? "docs/" : "") + "entry-" + i + ".txt"));
+                zip.write(text(entryChars).getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * A JPEG of smooth noise, compressing like a photo rather than a flat image
+     */
+    public byte[] jpeg(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int r = random.nextInt(256);
+        int g = random.nextInt(256);
+        int b = random.nextInt(256);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                r = clamp(r + random.nextInt(7) - 3);
+                g = clamp(g + random.nextInt(7) - 3);
+                b = clamp(b + random.nextInt(7) - 3);
+                image.setRGB(x, y, r << 16 | g << 8 | b);
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, "jpg", out)) {
+            throw new IOException("No JPEG writer");
+        }
+        return out.toByteArray();
+    }
+
+    public Path jpegFile(Path dir, String name, int width, int height) throws IOException {
+        Path file = dir.resolve(name);
+        Files.write(file, jpeg(width, height));
+        return file;
+    }
+
+    /**
+     * The JPEG with a comment segment right after its start marker, which makes its content unique without
+     * encoding it again
+     */
+    public static byte[] withComment(byte[] jpeg, String comment) {
+        byte[] text = comment.getBytes(StandardCharsets.US_ASCII);
+        int length = text.length + 2;
+        byte[] result = new byte[jpeg.length + 2 + length];
+        // SOI, COM marker and length, comment, the rest of the image
+        System.arraycopy(jpeg, 0, result, 0, 2);
+        result[2] = (byte) 0xff;
+        result[3] = (byte) 0xfe;
+        result[4] = (byte) (length >> 8);
+        result[5] = (byte) length;
+        System.arraycopy(text, 0, result, 6, text.length);
+        System.arraycopy(jpeg, 2, result, 6 + text.length, jpeg.length - 2);
+        return result;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    /**
+     * A multipart mail with a text body and base64 encoded text attachments
+     */
+    public Path emailFile(Path dir, String name, int bodyChars, int attachments, int attachmentChars) throws IOException {
+        String boundary = "----=_Part_" + random.nextInt(Integer.MAX_VALUE);
+        Path file = dir.resolve(name);
+        try (OutputStream out = Files.newOutputStream(file);
+             Writer writer = new OutputStreamWriter(out, StandardCharsets.US_ASCII)) {
+            writer.write("From: Operations <ops@example.com>\r\n");
+            writer.write("To: Reporting <reports@example.com>\r\n");
+            writer.write("Subject: " + text(40) + "\r\n");
+            writer.write("Date: Mon, 2 Jul 2018 10:00:00 +0400\r\n");
+            writer.write("Message-ID: <" + random.nextLong() + "@example.com>\r\n");
+            writer.write("MIME-Version: 1.0\r\n");
+            writer.write("Content-Type: multipart/mixed; boundary=\"" + boundary + "\"\r\n\r\n");
+
+            writer.write("--" + boundary + "\r\n");
+            writer.write("Content-Type: text/plain; charset=us-ascii\r\n\r\n");
+            writer.write(text(bodyChars).replace("\n", "\r\n"));
+            writer.write("\r\n");
+
+            for (int i = 0; i < attachments; i++) {
+                writer.write("--" + boundary + "\r\n");
+                writer.write("Content-Type: text/plain; name=\"attachment-" + i + ".txt\"\r\n");
+                writer.write("Content-Disposition: attachment; filename=\"attachment-" + i + ".txt\"\r\n");
+                writer.write("Content-Transfer-Encoding: base64\r\n\r\n");
+                writer.write(Base64.getMimeEncoder().encodeToString(text(attachmentChars).getBytes(StandardCharsets.UTF_8)));
+                writer.write("\r\n");
+            }
+            writer.write("--" + boundary + "--\r\n");
+        }
+        return file;
+    }
+}
@@ -0,0 +1,183 @@
+package benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Answers POST /_bulk on a loopback port like a cluster which accepts every document, after a fixed delay standing
+ * in for the indexing time. Nothing is stored.
+ */
+public class FakeElasticsearch {
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMillis;
+    private final BiConsumer<String, String> onAcknowledged;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    /**
+     * @param threads        bulk requests handled at the same time, like the write thread pool of a node
+     * @param latencyMillis  delay of every bulk response
+     * @param onAcknowledged called with the index and id of every document once its bulk response is sent
+     */
+    public FakeElasticsearch(int threads, long latencyMillis, BiConsumer<String, String> onAcknowledged) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.onAcknowledged = onAcknowledged;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "fake-es");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/_bulk", this::bulk);
+        server.start();
+    }
+
+    /**
+     * The node to put in emirates.es.nodes
+     */
+    public String getNode() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    private void bulk(HttpExchange exchange) throws IOException {
+        try {
+            byte[] body = readAll(exchange.getRequestBody());
+            requests.incrementAndGet();
+            bytes.addAndGet(body.length);
+
+            // an action line and a source line per document
+            List<String[]> docs = new ArrayList<>();
+            int start = 0;
+            boolean action = true;
+            for (int i = 0; i < body.length; i++) {
+                if (body[i] != '\n') {
+                    continue;
+                }
+                if (action) {
+                    docs.add(parseAction(body, start, i - start));
+                }
+                action = !action;
+                start = i + 1;
+            }
+
+            if (latencyMillis > 0) {
+                TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            }
+
+            XContentBuilder response = jsonBuilder()
+                    .startObject()
+                    .field("took", latencyMillis)
+                    .field("errors", false)
+                    .startArray("items");
+            for (String[] doc : docs) {
+                response.startObject()
+                        .startObject("index")
+                        .field("_index", doc[0])
+                        .field("_type", doc[1])
+                        .field("_id", doc[2])
+                        .field("_version", 1)
+                        .field("result", "created")
+                        .startObject("_shards")
+                        .field("total", 1)
+                        .field("successful", 1)
+                        .field("failed", 0)
+                        .endObject()
+                        .field("_seq_no", 0)
+                        .field("_primary_term", 1)
+                        .field("status", 201)
+                        .endObject()
+                        .endObject();
+            }
+            send(exchange, 200, BytesReference.toBytes(BytesReference.bytes(response.endArray().endObject())));
+
+            documents.addAndGet(docs.size());
+            for (String[] doc : docs) {
+                onAcknowledged.accept(doc[0], doc[2]);
+            }
+        } catch (IOException | RuntimeException e) {
+            send(exchange, 400, ("{\"error\":\"" + e.getClass().getSimpleName() + "\",\"status\":400}")
+                    .getBytes(StandardCharsets.UTF_8));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, "{\"error\":\"stopped\",\"status\":503}".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Index, type and id of an action line
+     */
+    @SuppressWarnings("unchecked")
+    private static String[] parseAction(byte[] bytes, int offset, int length) throws IOException {
+        try (XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, bytes, offset, length)) {
+            Map<String, Object> action = parser.map();
+            if (action.size() != 1) {
+                throw new IOException("Not an action line");
+            }
+            Map<String, Object> metadata = (Map<String, Object>) action.values().iterator().next();
+            return new String[]{(String) metadata.get("_index"), (String) metadata.get("_type"), (String) metadata.get("_id")};
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getDocuments() {
+        return documents.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,86 @@
+package benchmarks;
+
+import MonitoringThreads.ArchiveRunnable;
+import MonitoringThreads.EmailRunnable;
+import MonitoringThreads.ImagesRunnable;
+import MonitoringThreads.TextRunnable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extraction of one file per content type up to the hand-over to the bulk indexer, which acknowledges at once.
+ * The files are generated and never moved, so every invocation parses the same file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexFileContentBenchmark {
+
+    // characters of text per file, split over the entries of an archive and the attachments of an email. Below
+    // the 100,000 a document takes without emirates.chunk.chars, a file over it would fail and be moved away.
+    @Param({"10000", "90000"})
+    public int chars;
+
+    private TextRunnable text;
+    private ArchiveRunnable archive;
+    private ImagesRunnable images;
+    private EmailRunnable email;
+
+    private Path textFile;
+    private Path zipFile;
+    private Path jpegFile;
+    private Path emailFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        Path root = Workspace.get();
+        text = new TextRunnable(Workspace.watched());
+        archive = new ArchiveRunnable(Workspace.watched());
+        images = new ImagesRunnable(Workspace.watched());
+        email = new EmailRunnable(Workspace.watched());
+
+        Path corpusDir = Files.createTempDirectory(root, "corpus");
+        Corpus corpus = new Corpus(42);
+        textFile = corpus.textFile(corpusDir, "text-" + chars + ".txt", chars);
+        zipFile = corpus.zipFile(corpusDir, "archive-" + chars + ".zip", 20, chars / 20);
+        jpegFile = corpus.jpegFile(corpusDir, "image.jpg", 1024, 768);
+        emailFile = corpus.emailFile(corpusDir, "email-" + chars + ".eml", chars / 2, 4, chars / 8);
+    }
+
+    @Benchmark
+    public void text() {
+        text.indexFileContent(textFile);
+    }
+
+    @Benchmark
+    public void archive() {
+        archive.indexFileContent(zipFile);
+    }
+
+    @Benchmark
+    public void image() {
+        images.indexFileContent(jpegFile);
+    }
+
+    @Benchmark
+    public void email() {
+        email.indexFileContent(emailFile);
+    }
+}
@@ -0,0 +1,79 @@
+package benchmarks;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.SAXException;
+import parser.JsonContentHandler;
+import parser.ParserPool;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Building a document source from parsed text: streamed through JsonContentHandler in the chunks a parser
+ * emits, against building a String of the content and writing it with an XContentBuilder.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonSourceBenchmark {
+    // the size of the character events of a Tika parse
+    private final static int CHUNK = 8192;
+
+    @Param({"10000", "1000000"})
+    public int chars;
+
+    private char[] text;
+    private String metadata;
+
+    @Setup
+    public void setUp() {
+        Corpus corpus = new Corpus(42);
+        // quotes and line breaks, so the escaping is measured too
+        text = corpus.text(chars).replace("report", "\"report\"").toCharArray();
+        metadata = "Content-Type=text/plain; charset=UTF-8 Content-Encoding=UTF-8 X-Parsed-By=org.apache.tika.parser.txt.TXTParser";
+    }
+
+    @Benchmark
+    public BytesReference streamed() throws SAXException {
+        JsonContentHandler document = ParserPool.INSTANCE.getJsonContentHandler(-1).startStreamedField("content");
+        for (int start = 0; start < text.length; start += CHUNK) {
+            document.characters(text, start, Math.min(CHUNK, text.length - start));
+        }
+        return document
+                .field("metadata", metadata)
+                .field("size", text.length)
+                .bytes();
+    }
+
+    @Benchmark
+    public BytesReference builder() throws IOException {
+        StringBuilder content = new StringBuilder(CHUNK);
+        for (int start = 0; start < text.length; start += CHUNK) {
+            content.append(text, start, Math.min(CHUNK, text.length - start));
+        }
+        XContentBuilder document = jsonBuilder()
+                .startObject()
+                .field("content", content.toString())
+                .field("metadata", metadata)
+                .field("size", text.length)
+                .endObject();
+        return BytesReference.bytes(document);
+    }
+}
@@ -0,0 +1,290 @@
+package benchmarks;
+
+import ESTransport.ESClient;
+import MonitoringThreads.ArchiveRunnable;
+import MonitoringThreads.EmailRunnable;
+import MonitoringThreads.ImagesRunnable;
+import MonitoringThreads.TextRunnable;
+import metrics.LatencyHistogram;
+import metrics.Metrics;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.LogManager;
+import org.apache.tika.parser.pkg.PackageParser;
+import org.apache.tika.parser.txt.TXTParser;
+import parser.ImageHeaderParser;
+import parser.ParserPool;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the service in this JVM against a stand-in for ES and drops generated files into its watched folders at a
+ * steady rate. Reports the throughput it sustained, the latency from dropping a file until ES acknowledged its
+ * document and the peak heap. Files dropped during the warm-up aren't counted.
+ *
+ * Settings, as system properties:
+ * load.rate (files per second, 20), load.seconds (60), load.warmup.seconds (10), load.drain.seconds (60),
+ * load.mix (weights of the folders, "archive:1,emails:1,images:1,txt:1"), load.chars (characters of text per file,
+ * 20000), load.es ("http" for a fake ES on a loopback port, "transport" for a sink in place of the transport
+ * client), load.es.threads (4) and load.es.latency.ms (delay of every bulk response over http, 0).
+ * Settings of the service, emirates.*, apply as usual, except emirates.store=sharded: documents are matched to
+ * their drops by file name, which only the flat store keeps.
+ */
+public class LoadTest {
+    private final static int RATE = Integer.getInteger("load.rate", 20);
+    private final static int SECONDS = Integer.getInteger("load.seconds", 60);
+    private final static int WARMUP_SECONDS = Integer.getInteger("load.warmup.seconds", 10);
+    private final static int DRAIN_SECONDS = Integer.getInteger("load.drain.seconds", 60);
+    private final static String MIX = System.getProperty("load.mix", "archive:1,emails:1,images:1,txt:1");
+    private final static int CHARS = Integer.getInteger("load.chars", 20000);
+    private final static String ES = System.getProperty("load.es", "http");
+    private final static int ES_THREADS = Integer.getInteger("load.es.threads", 4);
+    private final static long ES_LATENCY_MS = Long.getLong("load.es.latency.ms", 0L);
+
+    private final static int REPORT_SECONDS = 5;
+    private final static String FAILED_INDEX = "failed";
+    private final static double NANOS_PER_MILLI = 1e6;
+    private final static long MB = 1024 * 1024;
+
+    private final Map<String, Long> dropped = new ConcurrentHashMap<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong indexed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong measuredDone = new AtomicLong();
+    private final AtomicLong firstMeasuredDone = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong lastMeasuredDone = new AtomicLong();
+    private final AtomicLong peakHeap = new AtomicLong();
+
+    private final Corpus corpus = new Corpus(42);
+    private final List<byte[]> jpegs = new ArrayList<>();
+    private final List<String> folders = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        BasicConfigurator.configure();
+        LogManager.getRootLogger().setLevel(Level.WARN);
+
+        new LoadTest().run();
+    }
+
+    private void run() throws Exception {
+        if ("sharded".equals(System.getProperty("emirates.store", "flat"))) {
+            System.err.println("LoadTest matches documents to dropped files by name, which emirates.store=sharded "
+                    + "replaces with a content key; run it with the flat store");
+            System.exit(2);
+        }
+
+        for (String weighted : MIX.split(",")) {
+            String[] parts = weighted.trim().split(":");
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            for (int i = 0; i < weight; i++) {
+                folders.add(parts[0].trim());
+            }
+        }
+        for (int i = 0; i < 4; i++) {
+            jpegs.add(corpus.jpeg(1024, 768));
+        }
+
+        // before any runnable, they resolve their folders against user.dir
+        Path root = Workspace.create();
+        Path incoming = root.resolve("incoming");
+
+        FakeElasticsearch fakeEs = null;
+        NoopBulkSender sink = null;
+        if (ES.equals("http")) {
+            fakeEs = new FakeElasticsearch(ES_THREADS, ES_LATENCY_MS, this::acknowledged);
+            System.setProperty("emirates.es.protocol", "http");
+            System.setProperty("emirates.es.nodes", fakeEs.getNode());
+            ESClient.INSTANCE.initClient();
+        } else {
+            sink = NoopBulkSender.install(this::acknowledged);
+        }
+        Metrics.INSTANCE.start();
+        ParserPool.INSTANCE.warmUp(PackageParser.class, ImageHeaderParser.class, TXTParser.class);
+
+        ExecutorService watchers = Executors.newFixedThreadPool(4);
+        watchers.submit(new ArchiveRunnable(Workspace.watched()));
+        watchers.submit(new EmailRunnable(Workspace.watched()));
+        watchers.submit(new ImagesRunnable(Workspace.watched()));
+        watchers.submit(new TextRunnable(Workspace.watched()));
+        watchers.shutdown();
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(() -> peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max),
+                0, 50, TimeUnit.MILLISECONDS);
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+
+        System.out.printf(Locale.ROOT, "Dropping %d files/s for %d s (%d s warm-up) into %s, ES over %s%n",
+                RATE, SECONDS, WARMUP_SECONDS, Workspace.watched(), ES);
+
+        // paced by the schedule rather than by the previous drop, so a slow drop doesn't lower the rate
+        long start = System.nanoTime();
+        long period = TimeUnit.SECONDS.toNanos(1) / RATE;
+        long end = start + TimeUnit.SECONDS.toNanos(SECONDS);
+        long warmupEnd = start + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(REPORT_SECONDS);
+        long reportedDone = 0;
+        long late = 0;
+        long totalDropped = 0;
+        long measuredDropped = 0;
+        for (long n = 0; ; n++) {
+            long due = start + n * period;
+            if (due >= end) {
+                break;
+            }
+            long now = System.nanoTime();
+            if (now < due) {
+                LockSupport.parkNanos(due - now);
+            } else if (now - due > period) {
+                late++;
+            }
+            String folder = folders.get((int) (n % folders.size()));
+            drop(incoming, Workspace.watched().resolve(folder), folder, n, due >= warmupEnd);
+            totalDropped++;
+            if (due >= warmupEnd) {
+                measuredDropped++;
+            }
+
+            if (System.nanoTime() >= nextReport) {
+                long done = indexed.get() + failed.get();
+                System.out.printf(Locale.ROOT, "%4d s  dropped %7d  indexed %7d  failed %5d  %7.1f files/s  heap %5d MB%n",
+                        TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), n + 1, indexed.get(), failed.get(),
+                        (done - reportedDone) / (double) REPORT_SECONDS, memory.getHeapMemoryUsage().getUsed() / MB);
+                reportedDone = done;
+                nextReport += TimeUnit.SECONDS.toNanos(REPORT_SECONDS);
+            }
+        }
+
+        // until every file is acknowledged
+        long drainEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+        while (!dropped.isEmpty() && System.nanoTime() < drainEnd) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        sampler.shutdown();
+
+        // between acknowledgements, so the latency of the first files doesn't count as idle time
+        long measuredNanos = lastMeasuredDone.get() - firstMeasuredDone.get();
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Files dropped      %d (%d measured, %d dropped late)%n", totalDropped, measuredDropped, late);
+        System.out.printf(Locale.ROOT, "Indexed / failed   %d / %d, %d not acknowledged after %d s%n",
+                indexed.get(), failed.get(), dropped.size(), DRAIN_SECONDS);
+        System.out.printf(Locale.ROOT, "Throughput         %.1f files/s sustained, %d files/s offered%n",
+                measuredNanos > 0 ? (measuredDone.get() - 1) / (measuredNanos / 1e9) : 0, RATE);
+        System.out.printf(Locale.ROOT, "Drop to ack        p50 %.1f ms  p99 %.1f ms  p99.9 %.1f ms  max %.1f ms%n",
+                latency.getPercentile(50) / NANOS_PER_MILLI, latency.getPercentile(99) / NANOS_PER_MILLI,
+                latency.getPercentile(99.9) / NANOS_PER_MILLI, latency.getMax() / NANOS_PER_MILLI);
+        System.out.printf(Locale.ROOT, "Heap               peak %d MB of %d MB, %d GCs taking %d ms%n",
+                peakHeap.get() / MB, memory.getHeapMemoryUsage().getMax() / MB,
+                gcCount() - gcCountBefore, gcMillis() - gcMillisBefore);
+        if (fakeEs != null) {
+            System.out.printf(Locale.ROOT, "Fake ES            %d bulk requests, %d documents, %d MB%n",
+                    fakeEs.getRequests(), fakeEs.getDocuments(), fakeEs.getBytes() / MB);
+        } else {
+            System.out.printf(Locale.ROOT, "Sink               %d documents, %d MB%n", sink.getDocuments(), sink.getBytes() / MB);
+        }
+
+        ESClient.INSTANCE.close();
+        ParserPool.INSTANCE.close();
+        Metrics.INSTANCE.stop();
+        if (fakeEs != null) {
+            fakeEs.stop();
+        }
+        System.exit(dropped.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * Writes a new file aside and moves it into the watched folder at once, so the service only sees complete files
+     */
+    private void drop(Path incoming, Path folder, String type, long n, boolean measured) throws IOException {
+        String name;
+        Path file;
+        switch (type) {
+            case "archive":
+                name = "load-" + n + ".zip";
+                file = corpus.zipFile(incoming, name, 10, CHARS / 10);
+                break;
+            case "emails":
+                name = "load-" + n + ".eml";
+                file = corpus.emailFile(incoming, name, CHARS / 2, 2, CHARS / 4);
+                break;
+            case "images":
+                name = "load-" + n + ".jpg";
+                file = incoming.resolve(name);
+                Files.write(file, Corpus.withComment(jpegs.get((int) (n % jpegs.size())), name));
+                break;
+            case "txt":
+                name = "load-" + n + ".txt";
+                file = corpus.textFile(incoming, name, CHARS);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown folder in load.mix: " + type);
+        }
+
+        // -1 for a file of the warm-up
+        dropped.put(name, measured ? System.nanoTime() : -1L);
+        Files.move(file, folder.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Matches the document of a file, not those derived from it, to the file's drop by its name. That's kept as
+     * is by the flat processed store, the only one run() accepts.
+     */
+    private void acknowledged(String index, String id) {
+        if (id.contains("#") || id.contains("!/")) {
+            return;
+        }
+
+        String name = id.substring(Math.max(id.lastIndexOf('/'), id.lastIndexOf('\\')) + 1);
+        Long droppedAt = dropped.remove(name);
+        if (droppedAt == null) {
+            return;
+        }
+
+        if (FAILED_INDEX.equals(index)) {
+            failed.incrementAndGet();
+        } else {
+            indexed.incrementAndGet();
+        }
+        if (droppedAt >= 0) {
+            latency.recordSince(droppedAt);
+            measuredDone.incrementAndGet();
+            long now = System.nanoTime();
+            firstMeasuredDone.accumulateAndGet(now, Math::min);
+            lastMeasuredDone.accumulateAndGet(now, Math::max);
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+}
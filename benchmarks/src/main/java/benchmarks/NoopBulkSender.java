@@ -0,0 +1,78 @@
+package benchmarks;
+
+import ESTransport.BulkSender;
+import ESTransport.ESClient;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Acknowledges every bulk request at once without sending it anywhere, so benchmarks measure the extraction
+ * and the bulk indexer only. Counts what it got, like an in-memory sink.
+ */
+public class NoopBulkSender implements BulkSender {
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final BiConsumer<String, String> onAcknowledged;
+
+    /**
+     * @param onAcknowledged called with the index and id of every document once its bulk request is answered
+     */
+    public NoopBulkSender(BiConsumer<String, String> onAcknowledged) {
+        this.onAcknowledged = onAcknowledged;
+    }
+
+    /**
+     * Makes ESClient index into a new sink
+     */
+    public static NoopBulkSender install() {
+        return install((index, id) -> { });
+    }
+
+    public static NoopBulkSender install(BiConsumer<String, String> onAcknowledged) {
+        NoopBulkSender sender = new NoopBulkSender(onAcknowledged);
+        ESClient.INSTANCE.initClient(sender);
+        return sender;
+    }
+
+    @Override
+    public void bulk(BulkRequest request, ActionListener<BulkResponse> listener) {
+        List<DocWriteRequest> requests = request.requests();
+        BulkItemResponse[] items = new BulkItemResponse[requests.size()];
+        for (int i = 0; i < items.length; i++) {
+            DocWriteRequest docRequest = requests.get(i);
+            if (docRequest instanceof IndexRequest) {
+                bytes.addAndGet(((IndexRequest) docRequest).source().length());
+            }
+            items[i] = new BulkItemResponse(i, DocWriteRequest.OpType.INDEX, new IndexResponse(
+                    new ShardId(docRequest.index(), "_na_", 0), docRequest.type(), docRequest.id(), 1, 1, 1, true));
+        }
+        documents.addAndGet(items.length);
+        listener.onResponse(new BulkResponse(items, 0));
+
+        for (DocWriteRequest docRequest : requests) {
+            onAcknowledged.accept(docRequest.index(), docRequest.id());
+        }
+    }
+
+    public long getDocuments() {
+        return documents.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public void close() {
+    }
+}
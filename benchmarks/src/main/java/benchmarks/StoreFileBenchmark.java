@@ -0,0 +1,74 @@
+package benchmarks;
+
+import MonitoringThreads.TextRunnable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storing a new file: hashing its content, the duplicate lookup, journaling and the move into the processed
+ * folder. With collisions every file has the same name, so the store has to find a free one.
+ *
+ * Nothing is indexed, so every stored file stays pending in the journal, as it would in a backlog.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreFileBenchmark {
+
+    @Param({"false", "true"})
+    public boolean collisions;
+
+    @Param({"4096", "1048576"})
+    public int size;
+
+    private TextRunnable runnable;
+    private Path incoming;
+    private byte[] content;
+    private long count = 0;
+    private Path file;
+
+    @Setup
+    public void setUp() throws IOException {
+        Path root = Workspace.get();
+        runnable = new TextRunnable(Workspace.watched());
+        incoming = Files.createTempDirectory(root.resolve("incoming"), "store");
+        content = new Corpus(42).text(size).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A file with content not stored before, the count in its first bytes
+     */
+    @Setup(Level.Invocation)
+    public void newFile() throws IOException {
+        count++;
+        byte[] unique = Long.toString(count).getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(unique, 0, content, 0, Math.min(unique.length, content.length));
+
+        file = incoming.resolve(collisions ? "report.txt" : "report-" + count + ".txt");
+        Files.write(file, content);
+    }
+
+    @Benchmark
+    public Path storeFile() throws IOException {
+        return runnable.storeFile(file);
+    }
+}
@@ -0,0 +1,54 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A temporary working directory the runnables store, journal and hash into, set up once per JVM, with the
+ * watched folders in its "watched" subfolder. It must be created before BaseRunnable is loaded, as BaseRunnable
+ * resolves its paths against user.dir.
+ */
+public class Workspace {
+    final static String[] FOLDERS = {"archive", "emails", "images", "txt"};
+
+    private static Path root;
+    private static NoopBulkSender sink;
+
+    /**
+     * Creates the working directory and the watched folders
+     */
+    public static synchronized Path create() throws IOException {
+        if (root == null) {
+            root = Files.createTempDirectory("emirates-bench");
+            System.setProperty("user.dir", root.toString());
+            for (String folder : FOLDERS) {
+                Files.createDirectories(watched().resolve(folder));
+            }
+            Files.createDirectories(root.resolve("incoming"));
+        }
+        return root;
+    }
+
+    /**
+     * Creates the working directory and points ESClient to a no-op sink
+     */
+    public static synchronized Path get() throws IOException {
+        create();
+        if (sink == null) {
+            sink = NoopBulkSender.install();
+        }
+        return root;
+    }
+
+    /**
+     * The directory the runnables are created with, it holds a folder per runnable
+     */
+    public static synchronized Path watched() {
+        return root.resolve("watched");
+    }
+
+    public static synchronized NoopBulkSender getSink() {
+        return sink;
+    }
+}
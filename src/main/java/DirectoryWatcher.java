@@ -1,22 +1,37 @@
 import ESTransport.ESClient;
+import ESTransport.IndexListener;
 import MonitoringThreads.ArchiveRunnable;
+import MonitoringThreads.Backfill;
 import MonitoringThreads.EmailRunnable;
+import MonitoringThreads.ExtractionCache;
 import MonitoringThreads.ImagesRunnable;
+import MonitoringThreads.InboxRunnable;
 import MonitoringThreads.TextRunnable;
+import metrics.Metrics;
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
+import org.apache.tika.parser.pkg.PackageParser;
+import org.apache.tika.parser.txt.TXTParser;
+import parser.ImageHeaderParser;
+import parser.ParserPool;
 
 import java.nio.file.*;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DirectoryWatcher {
     private final static Logger logger = LogManager.getLogger(DirectoryWatcher.class);
 
     private static void usage() {
         System.err.println("usage: java DirectoryWatcher dir");
+        System.err.println("       java DirectoryWatcher --backfill dir");
+        System.err.println("       java DirectoryWatcher --replay");
         System.exit(-1);
     }
 
@@ -28,8 +43,141 @@ public class DirectoryWatcher {
         }
 
         ESClient.INSTANCE.initClient();
+        if (!ESClient.INSTANCE.isInitialized()) {
+            System.exit(1);
+        }
+        Metrics.INSTANCE.start();
+
+        if (args[0].equals("--replay")) {
+            replay();
+            return;
+        }
+
+        // so that the first files after a start aren't slowed down by parser initialisation
+        ParserPool.INSTANCE.warmUp(PackageParser.class, ImageHeaderParser.class, TXTParser.class);
+
+        if (args[0].equals("--backfill")) {
+            if (args.length != 2) {
+                usage();
+            }
+            backfill(Paths.get(args[1]));
+            return;
+        }
 
         Path dir = Paths.get(args[0]);
+
+        // a single inbox for files of any type instead of a folder per type
+        if (Boolean.getBoolean("emirates.inbox")) {
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                executor.submit(new InboxRunnable(dir));
+            } catch (IOException e) {
+                logger.error("Failed to submit task", e);
+            }
+            executor.shutdown();
+        } else {
+            watchFolders(dir);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            ESClient.INSTANCE.close();
+            logger.info("Close Transport Client.");
+            ParserPool.INSTANCE.close();
+            Metrics.INSTANCE.stop();
+        }));
+    }
+
+    /**
+     * Indexes the documents of the extraction cache again, without parsing their files
+     */
+    private static void replay() {
+        AtomicLong indexed = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        long start = System.nanoTime();
+        long documents = 0;
+        try {
+            documents = ExtractionCache.INSTANCE.replay(new IndexListener() {
+                @Override
+                public void onIndexed(String index, String id) {
+                    indexed.incrementAndGet();
+                }
+
+                @Override
+                public void onFailure(String index, String id, Throwable cause) {
+                    logger.error("Could not index : " + id, cause);
+                    failed.incrementAndGet();
+                }
+            });
+        } catch (IOException e) {
+            logger.error("Could not replay the extraction cache", e);
+        }
+
+        // the runnables' threads aren't started by a replay, which ends once these are stopped
+        ESClient.INSTANCE.close();
+        Metrics.INSTANCE.stop();
+        logger.info("Replayed " + documents + " documents in " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)
+                + " s, " + indexed.get() + " indexed, " + failed.get() + " failed");
+    }
+
+    /**
+     * Stores and indexes the files already in the folders without watching them, exits once they're all indexed
+     */
+    private static void backfill(Path dir) {
+        List<Backfill> backfills = new ArrayList<>();
+        try {
+            if (Boolean.getBoolean("emirates.inbox")) {
+                backfills.add(new InboxRunnable(dir).backfill());
+            } else {
+                backfills.add(new ArchiveRunnable(dir).backfill());
+                backfills.add(new EmailRunnable(dir).backfill());
+                backfills.add(new ImagesRunnable(dir).backfill());
+                backfills.add(new TextRunnable(dir).backfill());
+            }
+        } catch (IOException e) {
+            logger.error("Failed to start backfill", e);
+            System.exit(1);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(backfills.size());
+        for (Backfill backfill : backfills) {
+            executor.submit(backfill);
+        }
+        executor.shutdown();
+
+        long start = System.nanoTime();
+        long reportMillis = Long.getLong("emirates.backfill.report.ms", 10000L);
+        long nextReport = start + TimeUnit.MILLISECONDS.toNanos(reportMillis);
+        try {
+            // walked, then indexed
+            while (!executor.isTerminated() || !backfills.stream().allMatch(Backfill::isIndexed)) {
+                executor.awaitTermination(100, TimeUnit.MILLISECONDS);
+                if (System.nanoTime() >= nextReport) {
+                    for (Backfill backfill : backfills) {
+                        logger.info(backfill.getProgress());
+                    }
+                    nextReport += TimeUnit.MILLISECONDS.toNanos(reportMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Backfill interrupted, it resumes from its checkpoint");
+            Thread.currentThread().interrupt();
+        }
+
+        ESClient.INSTANCE.close();
+        ParserPool.INSTANCE.close();
+        Metrics.INSTANCE.stop();
+
+        boolean complete = true;
+        for (Backfill backfill : backfills) {
+            logger.info(backfill.getProgress());
+            complete &= backfill.isComplete();
+        }
+        logger.info("Backfill " + (complete ? "done" : "left files behind, run it again to retry them") + " in "
+                + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + " s");
+        System.exit(complete ? 0 : 1);
+    }
+
+    private static void watchFolders(Path dir) {
         ExecutorService executor = Executors.newFixedThreadPool(4);
         try {
             executor.submit(new ArchiveRunnable(dir));
@@ -54,10 +202,5 @@ public class DirectoryWatcher {
 
 
         executor.shutdown();
-
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            ESClient.INSTANCE.getClient().close();
-            logger.info("Close Transport Client.");
-        }));
     }
 }
@@ -0,0 +1,135 @@
+package ESTransport;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the bulk requests in flight, adjusting the limit like TCP congestion control (AIMD): every request
+ * completing quickly raises it by 1/limit, so by about one per round of requests, and a request rejected by ES
+ * or slower than the latency target halves it. It's halved at most once per round trip: requests sent before the
+ * last decrease saw the same congestion and don't decrease it again.
+ */
+class AdaptiveLimit {
+    private final static double DECREASE_FACTOR = 0.5;
+
+    private final int maxLimit;
+    private final long latencyTargetNanos;
+    // nanoTime, a fake one in the tests
+    private final LongSupplier clock;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    private double limit;
+    private int inFlight = 0;
+    private long lastDecrease;
+
+    AdaptiveLimit(int initialLimit, int maxLimit, long latencyTarget, TimeUnit unit) {
+        this(initialLimit, maxLimit, latencyTarget, unit, System::nanoTime);
+    }
+
+    AdaptiveLimit(int initialLimit, int maxLimit, long latencyTarget, TimeUnit unit, LongSupplier clock) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.max(1, Math.min(initialLimit, this.maxLimit));
+        this.latencyTargetNanos = unit.toNanos(latencyTarget);
+        this.clock = clock;
+        this.lastDecrease = clock.getAsLong();
+    }
+
+    /**
+     * Waits until a request may be sent
+     *
+     * @return when it was allowed, passed back to {@link #release}
+     */
+    long acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            while (inFlight >= (int) limit) {
+                changed.await();
+            }
+            inFlight++;
+            return clock.getAsLong();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A request completed
+     *
+     * @param acquiredAt returned by {@link #acquire} for the request
+     * @param congested whether ES rejected the request or some of its documents because it's overloaded
+     * @return the latency of the request in nanoseconds
+     */
+    long release(long acquiredAt, boolean congested) {
+        lock.lock();
+        try {
+            long now = clock.getAsLong();
+            long latencyNanos = now - acquiredAt;
+            inFlight--;
+            if (congested || latencyNanos > latencyTargetNanos) {
+                if (acquiredAt - lastDecrease >= 0) {
+                    limit = Math.max(1, limit * DECREASE_FACTOR);
+                    lastDecrease = now;
+                }
+            } else if (limit < maxLimit) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            changed.signalAll();
+            return latencyNanos;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A request couldn't be sent, the limit is kept
+     */
+    void cancel() {
+        lock.lock();
+        try {
+            inFlight--;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until no request is in flight
+     */
+    boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (inFlight > 0) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = changed.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,577 @@
+package ESTransport;
+
+import metrics.LatencyHistogram;
+import metrics.Metrics;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Batches index requests into bulk requests. A batch is sent once it reaches
+ * {@code maxActions} documents or {@code maxBytes} of source, or when the flush
+ * interval elapses. The number of bulk requests in flight is adapted to how ES
+ * copes with them (see {@link AdaptiveLimit}). Batches wait for a free slot in a
+ * bounded queue, so {@link #add} only blocks the caller when that queue is full.
+ *
+ * Documents ES rejects because it's overloaded, and whole bulk requests failing
+ * on the way, are retried after an exponential backoff with full jitter. Once
+ * the retries are exhausted the document goes to the dead-letter queue, which is
+ * replayed periodically.
+ */
+public class BulkIndexer {
+    private final static Logger logger = LogManager.getLogger(BulkIndexer.class);
+
+    private final static long RETRY_BASE_MILLIS = Long.getLong("emirates.bulk.retry.ms", 100L);
+    private final static long RETRY_MAX_MILLIS = Long.getLong("emirates.bulk.retry.max.ms", 30000L);
+    private final static int MAX_RETRIES = Integer.getInteger("emirates.bulk.retries", 8);
+    private final static long REPLAY_INTERVAL_MILLIS = Long.getLong("emirates.deadletter.replay.ms", 60000L);
+    // where files which could not be indexed are stored, see BaseRunnable
+    private final static String FAILED_INDEX = "failed";
+
+    private final BulkSender sender;
+    private final int maxActions;
+    private final long maxBytes;
+    private final AdaptiveLimit limit;
+    private final DeadLetterQueue deadLetters;
+    // full batches waiting for a free slot, taken by the send loop
+    private final BlockingQueue<Batch> ready;
+    // batches of the flusher thread which didn't fit into ready, it never waits for space. The send loop takes
+    // them first, they only exist while ready is full, so it never waits for ready while one is left.
+    private final Queue<Batch> deferred = new ConcurrentLinkedQueue<>();
+    // all daemons, so an indexer which isn't closed doesn't keep the JVM alive, e.g. after a replay
+    private final ExecutorService sendThread = Executors.newSingleThreadExecutor(daemon("bulk-send"));
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(daemon("bulk-flush"));
+    // listener callbacks may index again (e.g. into "failed"), so they must not run on ES network threads
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(daemon("bulk-callbacks"));
+    // replays block on the limit like any other caller, which must not hold up the flusher
+    private final ExecutorService replayer = Executors.newSingleThreadExecutor(daemon("bulk-replay"));
+
+    private BulkRequest current = new BulkRequest();
+    private List<Pending> currentPending = new ArrayList<>();
+    private volatile boolean closed = false;
+
+    // documents waiting for their retry, whoever removes one sends or dead-letters it
+    private final Set<Pending> retrying = ConcurrentHashMap.newKeySet();
+    // dead-letter files whose documents are being replayed
+    private final Set<Path> replaying = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong deadLettered = new AtomicLong();
+    // round trips of bulk requests
+    private final LatencyHistogram requestLatency = Metrics.INSTANCE.histogram("bulk.request");
+
+    /**
+     * A document handed to the indexer and not yet settled
+     */
+    private static class Pending {
+        final IndexRequest request;
+        final IndexListener listener;
+        int attempt = 0;
+
+        Pending(IndexRequest request, IndexListener listener) {
+            this.request = request;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * A bulk request and its documents
+     */
+    private static class Batch {
+        final BulkRequest request;
+        final List<Pending> pending;
+
+        Batch(BulkRequest request, List<Pending> pending) {
+            this.request = request;
+            this.pending = pending;
+        }
+    }
+
+    // stops the send loop
+    private final static Batch END = new Batch(null, null);
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * @param maxQueued batches waiting for a free slot before {@link #add} blocks
+     */
+    BulkIndexer(BulkSender sender, int maxActions, long maxBytes, long flushIntervalMillis, int maxQueued,
+                AdaptiveLimit limit, DeadLetterQueue deadLetters) {
+        this.sender = sender;
+        this.maxActions = maxActions;
+        this.maxBytes = maxBytes;
+        this.limit = limit;
+        this.deadLetters = deadLetters;
+        this.ready = new ArrayBlockingQueue<>(Math.max(1, maxQueued));
+
+        sendThread.execute(this::sendLoop);
+
+        Metrics.INSTANCE.gauge("bulk.concurrencyLimit", this::getConcurrencyLimit);
+        Metrics.INSTANCE.gauge("bulk.inFlight", this::getInFlight);
+        Metrics.INSTANCE.gauge("bulk.queuedRequests", this::getQueuedRequests);
+        Metrics.INSTANCE.gauge("bulk.retries", this::getRetries);
+        Metrics.INSTANCE.gauge("bulk.deadLettered", this::getDeadLettered);
+        flusher.scheduleWithFixedDelay(() -> flush(false), flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        if (deadLetters != null && REPLAY_INTERVAL_MILLIS > 0) {
+            flusher.scheduleWithFixedDelay(() -> replayer.execute(this::replayDeadLetters),
+                    REPLAY_INTERVAL_MILLIS, REPLAY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Queues a document for indexing, the listener is notified once its bulk request completes
+     */
+    public void add(IndexRequest request, IndexListener listener) {
+        Pending pending = new Pending(request, listener);
+        if (closed) {
+            dispatch(() -> deadLetter(pending, new IllegalStateException("Bulk indexer is closed")));
+            return;
+        }
+        enqueue(pending, true);
+    }
+
+    /**
+     * @param mayBlock false on the flusher thread, a full batch is then deferred instead of waiting for space
+     */
+    private void enqueue(Pending pending, boolean mayBlock) {
+        BulkRequest toSend = null;
+        List<Pending> toNotify = null;
+        synchronized (this) {
+            current.add(pending.request);
+            currentPending.add(pending);
+
+            if (current.numberOfActions() >= maxActions || current.estimatedSizeInBytes() >= maxBytes) {
+                toSend = current;
+                toNotify = currentPending;
+                current = new BulkRequest();
+                currentPending = new ArrayList<>();
+            }
+        }
+
+        if (toSend != null) {
+            submit(new Batch(toSend, toNotify), mayBlock);
+        }
+    }
+
+    /**
+     * Sends whatever is currently batched
+     */
+    public void flush() {
+        flush(true);
+    }
+
+    private void flush(boolean mayBlock) {
+        BulkRequest toSend;
+        List<Pending> toNotify;
+        synchronized (this) {
+            if (current.numberOfActions() == 0) {
+                return;
+            }
+            toSend = current;
+            toNotify = currentPending;
+            current = new BulkRequest();
+            currentPending = new ArrayList<>();
+        }
+
+        submit(new Batch(toSend, toNotify), mayBlock);
+    }
+
+    /**
+     * Flushes pending documents and waits for in-flight bulk requests to complete. Documents waiting for a retry,
+     * and those failing from now on, are dead-lettered.
+     */
+    public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+        closed = true;
+        flusher.shutdownNow();
+        replayer.shutdownNow();
+        // it never blocks, so it's done at once and defers no more batches
+        flusher.awaitTermination(timeout, unit);
+        flush();
+
+        for (Pending pending : retrying) {
+            if (retrying.remove(pending)) {
+                dispatch(() -> deadLetter(pending, new IllegalStateException("Bulk indexer is closed")));
+            }
+        }
+
+        boolean completed = ready.offer(END, timeout, unit);
+        sendThread.shutdown();
+        completed = completed && sendThread.awaitTermination(timeout, unit);
+        if (!completed) {
+            sendThread.shutdownNow();
+            List<Batch> unsent = new ArrayList<>(deferred);
+            deferred.clear();
+            ready.drainTo(unsent);
+            for (Batch batch : unsent) {
+                if (batch != END) {
+                    dispatch(() -> batch.pending.forEach(p -> deadLetter(p, new IllegalStateException("Bulk indexer is closed"))));
+                }
+            }
+        }
+        completed = completed && limit.awaitIdle(timeout, unit);
+        dispatcher.shutdown();
+        completed = completed && dispatcher.awaitTermination(timeout, unit);
+        if (deadLetters != null) {
+            deadLetters.close();
+        }
+        return completed;
+    }
+
+    /**
+     * Bulk requests currently allowed in flight
+     */
+    public int getConcurrencyLimit() {
+        return limit.getLimit();
+    }
+
+    public int getInFlight() {
+        return limit.getInFlight();
+    }
+
+    /**
+     * Bulk requests waiting for a free slot, deferred ones included
+     */
+    public int getQueuedRequests() {
+        return ready.size() + deferred.size();
+    }
+
+    /**
+     * Number of documents sent again after a retryable failure
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Number of documents which exhausted their retries
+     */
+    public long getDeadLettered() {
+        return deadLettered.get();
+    }
+
+    /**
+     * Runs listener callbacks off the calling thread, on the common pool once the dispatcher is shut down
+     */
+    private void dispatch(Runnable callbacks) {
+        try {
+            dispatcher.execute(callbacks);
+        } catch (RejectedExecutionException e) {
+            ForkJoinPool.commonPool().execute(callbacks);
+        }
+    }
+
+    private void submit(Batch batch, boolean mayBlock) {
+        if (!mayBlock) {
+            if (!ready.offer(batch)) {
+                deferred.add(batch);
+            }
+            return;
+        }
+
+        try {
+            ready.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // nothing wrong with the documents, they are kept for the replay
+            dispatch(() -> batch.pending.forEach(p -> deadLetter(p, e)));
+        }
+    }
+
+    /**
+     * Sends the queued batches as soon as the limit allows, until closed
+     */
+    private void sendLoop() {
+        while (true) {
+            Batch batch;
+            try {
+                Batch deferredBatch = deferred.poll();
+                batch = deferredBatch != null ? deferredBatch : ready.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (batch == END) {
+                return;
+            }
+
+            long acquiredAt;
+            try {
+                acquiredAt = limit.acquire();
+            } catch (InterruptedException e) {
+                dispatch(() -> batch.pending.forEach(p -> deadLetter(p, e)));
+                return;
+            }
+            execute(batch.request, batch.pending, acquiredAt);
+        }
+    }
+
+    private void execute(BulkRequest request, List<Pending> pending, long acquiredAt) {
+        try {
+            sender.bulk(request, new ActionListener<BulkResponse>() {
+                @Override
+                public void onResponse(BulkResponse response) {
+                    boolean congested = false;
+                    if (response.hasFailures()) {
+                        for (BulkItemResponse item : response.getItems()) {
+                            congested |= item.isFailed() && isRetryable(item.getFailure());
+                        }
+                    }
+                    requestLatency.record(limit.release(acquiredAt, congested));
+                    dispatch(() -> notifyResponse(response, pending));
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    requestLatency.record(limit.release(acquiredAt, isRetryable(e)));
+                    logger.error("Bulk request of " + request.numberOfActions() + " documents failed", e);
+                    dispatch(() -> notifyFailure(pending, e));
+                }
+            });
+        } catch (RuntimeException e) {
+            limit.cancel();
+            logger.error("Could not send bulk request", e);
+            dispatch(() -> notifyFailure(pending, e));
+        }
+    }
+
+    private void notifyResponse(BulkResponse response, List<Pending> pending) {
+        BulkItemResponse[] items = response.getItems();
+        for (int i = 0; i < items.length; i++) {
+            BulkItemResponse item = items[i];
+            Pending p = pending.get(i);
+            if (!item.isFailed()) {
+                p.listener.onIndexed(item.getIndex(), item.getId());
+            } else if (isRetryable(item.getFailure())) {
+                retry(p, item.getFailure().getCause());
+            } else {
+                p.listener.onFailure(item.getIndex(), item.getId(), item.getFailure().getCause());
+            }
+        }
+    }
+
+    private void notifyFailure(List<Pending> pending, Exception e) {
+        boolean retryable = isRetryable(e);
+        for (Pending p : pending) {
+            if (retryable) {
+                retry(p, e);
+            } else {
+                p.listener.onFailure(p.request.index(), p.request.id(), e);
+            }
+        }
+    }
+
+    /**
+     * A document is retried if ES was too busy to take it
+     */
+    private static boolean isRetryable(BulkItemResponse.Failure failure) {
+        return failure.getStatus() == RestStatus.TOO_MANY_REQUESTS
+                || failure.getStatus() == RestStatus.SERVICE_UNAVAILABLE
+                || ExceptionsHelper.unwrapCause(failure.getCause()) instanceof EsRejectedExecutionException;
+    }
+
+    /**
+     * A whole bulk request is retried unless it's invalid, e.g. when it timed out or no node was available.
+     * Over HTTP, only when the cluster or a proxy answered it's overloaded or unavailable.
+     */
+    private static boolean isRetryable(Exception e) {
+        Throwable cause = ExceptionsHelper.unwrapCause(e);
+        if (cause instanceof ElasticsearchStatusException) {
+            RestStatus status = ((ElasticsearchStatusException) cause).status();
+            return status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE
+                    || status == RestStatus.BAD_GATEWAY || status == RestStatus.GATEWAY_TIMEOUT;
+        }
+        return !(cause instanceof ActionRequestValidationException || cause instanceof IllegalArgumentException);
+    }
+
+    private void retry(Pending pending, Throwable cause) {
+        if (closed || pending.attempt >= MAX_RETRIES) {
+            deadLetter(pending, cause);
+            return;
+        }
+
+        // full jitter: a random delay up to the exponential backoff, so rejected documents don't come back together
+        long backoff = Math.min(RETRY_MAX_MILLIS, RETRY_BASE_MILLIS << Math.min(pending.attempt, 30));
+        long delay = ThreadLocalRandom.current().nextLong(backoff + 1);
+        pending.attempt++;
+        retries.incrementAndGet();
+
+        retrying.add(pending);
+        try {
+            flusher.schedule(() -> {
+                if (retrying.remove(pending)) {
+                    enqueue(pending, false);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed in the meantime
+            if (retrying.remove(pending)) {
+                deadLetter(pending, cause);
+            }
+        }
+    }
+
+    private void deadLetter(Pending pending, Throwable cause) {
+        IndexRequest request = pending.request;
+        if (deadLetters == null) {
+            pending.listener.onFailure(request.index(), request.id(), cause);
+            return;
+        }
+
+        try {
+            deadLetters.append(request);
+        } catch (IOException e) {
+            logger.error("Could not dead-letter document: " + request.id(), e);
+            pending.listener.onFailure(request.index(), request.id(), cause);
+            return;
+        }
+
+        deadLettered.incrementAndGet();
+        logger.warn("Dead-lettered document: " + request.id() + ", index=" + request.index() + ", cause: " + cause);
+        pending.listener.onDeadLettered(request.index(), request.id());
+    }
+
+    /**
+     * Sends the documents of the dead-letter files again, a file is deleted once all of its documents are either
+     * indexed, rejected for good or dead-lettered again into a newer file
+     */
+    private void replayDeadLetters() {
+        List<Path> files;
+        try {
+            files = deadLetters.rotate();
+        } catch (IOException e) {
+            logger.error("Could not rotate the dead-letter file", e);
+            return;
+        }
+
+        for (Path file : files) {
+            if (closed) {
+                return;
+            }
+            if (!replaying.add(file)) {
+                continue;
+            }
+
+            // records are streamed, adding blocks while the batches are queued up
+            ReplayListener listener = new ReplayListener(file);
+            int documents = 0;
+            try (DeadLetterQueue.Reader reader = deadLetters.read(file)) {
+                DeadLetterQueue.Record record;
+                while ((record = reader.next()) != null) {
+                    listener.expect();
+                    add(new IndexRequest(record.index, "_doc", record.id).source(record.source, XContentType.JSON), listener);
+                    documents++;
+                }
+                listener.read();
+            } catch (IOException e) {
+                logger.error("Could not read dead-letter file: " + file + ", it's replayed again later", e);
+            }
+            listener.onIndexed(null, null);
+
+            if (logger.isInfoEnabled()) {
+                logger.info("Replayed " + documents + " dead-lettered documents of " + file.getFileName());
+            }
+        }
+    }
+
+    /**
+     * Deletes a replayed dead-letter file once it's read and all of its documents are settled. A document ES
+     * rejects for good is indexed as failed instead.
+     */
+    private class ReplayListener implements IndexListener {
+        private final Path file;
+        // the documents sent and the reading of the file
+        private final AtomicInteger remaining = new AtomicInteger(1);
+        private volatile boolean read = false;
+
+        ReplayListener(Path file) {
+            this.file = file;
+        }
+
+        void expect() {
+            remaining.incrementAndGet();
+        }
+
+        /**
+         * The whole file was read, it may be deleted
+         */
+        void read() {
+            read = true;
+        }
+
+        @Override
+        public void onIndexed(String index, String id) {
+            if (remaining.decrementAndGet() == 0) {
+                if (read) {
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException e) {
+                        logger.error("Could not delete replayed dead-letter file: " + file, e);
+                    }
+                }
+                replaying.remove(file);
+            }
+        }
+
+        @Override
+        public void onFailure(String index, String id, Throwable cause) {
+            if (FAILED_INDEX.equals(index)) {
+                logger.error("Dropped dead-lettered document rejected by ES: " + id + ", index=" + index, cause);
+            } else {
+                logger.error("Dead-lettered document rejected by ES, indexing it as failed: " + id + ", index=" + index, cause);
+                try {
+                    XContentBuilder source = jsonBuilder()
+                            .startObject()
+                            .field("content", "failed")
+                            .field("reason", "Rejected by ES: " + cause)
+                            .endObject();
+                    expect();
+                    add(new IndexRequest(FAILED_INDEX, "_doc", id).source(source), this);
+                } catch (IOException e) {
+                    logger.error("Could not index failed document: " + id, e);
+                }
+            }
+
+            onIndexed(index, id);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package ESTransport;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+
+import java.io.Closeable;
+
+/**
+ * Sends bulk requests to the cluster without blocking the caller, the listener is notified on a network thread.
+ * Public so the benchmarks can replace the cluster.
+ */
+public interface BulkSender extends Closeable {
+    void bulk(BulkRequest request, ActionListener<BulkResponse> listener);
+}
@@ -0,0 +1,186 @@
+package ESTransport;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Documents ES kept rejecting, appended to a file in the dead-letter directory and forced to disk before
+ * the document counts as handled. The file is renamed to replay-&lt;time&gt;.dlq when its documents are
+ * replayed, so documents dead-lettered again during a replay go to a new file.
+ *
+ * Record layout: index, id and source, each as length (4 bytes) and bytes. A torn record at the end of a
+ * file reads as its end, so does a length reaching past the end of the file.
+ */
+class DeadLetterQueue {
+    private final static Logger logger = LogManager.getLogger(DeadLetterQueue.class);
+
+    private final static String CURRENT = "current.dlq";
+    private final static String REPLAY_PREFIX = "replay-";
+    private final static String SUFFIX = ".dlq";
+
+    static class Record {
+        final String index;
+        final String id;
+        final BytesReference source;
+
+        Record(String index, String id, BytesReference source) {
+            this.index = index;
+            this.id = id;
+            this.source = source;
+        }
+    }
+
+    private final Path dir;
+    private FileChannel channel;
+    private long rotations = 0;
+
+    DeadLetterQueue(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        // a torn record of a crash would hide everything appended after it
+        rotate();
+    }
+
+    /**
+     * Appends the document and forces it to disk
+     */
+    synchronized void append(IndexRequest request) throws IOException {
+        byte[] index = request.index().getBytes(StandardCharsets.UTF_8);
+        byte[] id = request.id().getBytes(StandardCharsets.UTF_8);
+        byte[] source = BytesReference.toBytes(request.source());
+
+        ByteBuffer record = ByteBuffer.allocate(12 + index.length + id.length + source.length);
+        record.putInt(index.length).put(index)
+                .putInt(id.length).put(id)
+                .putInt(source.length).put(source)
+                .flip();
+
+        if (channel == null) {
+            channel = FileChannel.open(dir.resolve(CURRENT), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+        }
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Starts a new file for further documents
+     *
+     * @return the files waiting for replay, oldest first, including those left over by a previous run
+     */
+    synchronized List<Path> rotate() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+
+        Path current = dir.resolve(CURRENT);
+        if (Files.exists(current)) {
+            if (Files.size(current) > 0) {
+                // the counter keeps names unique within the same millisecond
+                String name = String.format("%s%013d-%06d%s", REPLAY_PREFIX, System.currentTimeMillis(), rotations++, SUFFIX);
+                Files.move(current, dir.resolve(name));
+            } else {
+                Files.delete(current);
+            }
+        }
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, REPLAY_PREFIX + "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        files.sort(null);
+        return files;
+    }
+
+    /**
+     * Reads the documents of a file returned by {@link #rotate()} one by one
+     */
+    Reader read(Path file) throws IOException {
+        return new Reader(file);
+    }
+
+    static class Reader implements Closeable {
+        private final Path file;
+        private final DataInputStream in;
+        private final long size;
+        private long position = 0;
+
+        private Reader(Path file) throws IOException {
+            this.file = file;
+            this.size = Files.size(file);
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        }
+
+        /**
+         * @return null at the end of the file or at a torn record
+         */
+        Record next() throws IOException {
+            byte[] index = readField();
+            byte[] id = index != null ? readField() : null;
+            byte[] source = id != null ? readField() : null;
+            if (source == null) {
+                return null;
+            }
+            return new Record(new String(index, StandardCharsets.UTF_8), new String(id, StandardCharsets.UTF_8),
+                    new BytesArray(source));
+        }
+
+        private byte[] readField() throws IOException {
+            if (size - position < 4) {
+                if (position < size) {
+                    logger.warn("Torn dead-letter record at " + position + " of " + file);
+                }
+                return null;
+            }
+            int length = in.readInt();
+            position += 4;
+            // the file doesn't grow once rotated, so a longer field can only be torn or corrupt
+            if (length < 0 || length > size - position) {
+                logger.warn("Torn dead-letter record at " + (position - 4) + " of " + file + ", field length " + length);
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            position += length;
+            return bytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Could not close dead-letter file", e);
+            }
+            channel = null;
+        }
+    }
+}
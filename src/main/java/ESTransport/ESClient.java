@@ -1,30 +1,189 @@
 package ESTransport;
 
+import org.apache.http.HttpHost;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.transport.client.PreBuiltTransportClient;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 
 public class ESClient {
     private final static Logger logger = LogManager.getLogger(ESClient.class);
 
     public static final ESClient INSTANCE = new ESClient();
 
+    // "transport" (port 9300) or "http" (port 9200)
+    private final static String PROTOCOL = System.getProperty("emirates.es.protocol", "transport");
+
     private TransportClient client;
+    private BulkSender sender;
+    private BulkIndexer bulkIndexer;
+
     public void initClient() {
+        boolean http = "http".equals(PROTOCOL);
+        String[] nodes = System.getProperty("emirates.es.nodes", http ? "localhost:9200" : "localhost:9300").split(",");
+
+        if (http) {
+            HttpHost[] hosts = new HttpHost[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                hosts[i] = HttpHost.create(nodes[i].trim());
+            }
+            initClient(new RestBulkSender(hosts));
+        } else {
+            try {
+                client = new PreBuiltTransportClient(Settings.builder()
+                        .put("cluster.name", System.getProperty("emirates.es.cluster", "elasticsearch"))
+                        .put("client.transport.sniff", Boolean.getBoolean("emirates.es.sniff"))
+                        .build());
+                for (String node : nodes) {
+                    client.addTransportAddress(toTransportAddress(node.trim(), 9300));
+                }
+            } catch (UnknownHostException | IllegalArgumentException e) {
+                logger.error("Could not connect to ES", e);
+                if (client != null) {
+                    client.close();
+                    client = null;
+                }
+                return;
+            }
+            initClient(new TransportBulkSender(client));
+        }
+    }
+
+    /**
+     * Sets up the bulk indexer on top of the given sender, e.g. one which doesn't talk to ES at all
+     */
+    public void initClient(BulkSender sender) {
+        this.sender = sender;
+
+        DeadLetterQueue deadLetters = null;
         try {
-            client = new PreBuiltTransportClient(Settings.EMPTY).addTransportAddress(new TransportAddress(InetAddress.getByName("localhost"), 9300));
-        } catch (UnknownHostException e) {
-            logger.error("Could not connect to ES", e);
+            deadLetters = new DeadLetterQueue(Paths.get(System.getProperty("user.dir"), ".deadletter"));
+        } catch (IOException e) {
+            logger.error("Could not open the dead-letter queue, documents ES keeps rejecting are failed", e);
+        }
+
+        bulkIndexer = new BulkIndexer(sender,
+                Integer.getInteger("emirates.bulk.actions", 1000),
+                Long.getLong("emirates.bulk.size.mb", 5L) * 1024 * 1024,
+                Long.getLong("emirates.bulk.flush.ms", 1000L),
+                Integer.getInteger("emirates.bulk.queued", 4),
+                new AdaptiveLimit(Integer.getInteger("emirates.bulk.concurrent", 2),
+                        Integer.getInteger("emirates.bulk.concurrent.max", 16),
+                        Long.getLong("emirates.bulk.latency.ms", 2000L), TimeUnit.MILLISECONDS),
+                deadLetters);
+    }
+
+    private static TransportAddress toTransportAddress(String node, int defaultPort) throws UnknownHostException {
+        int colon = node.lastIndexOf(':');
+        if (colon == -1) {
+            return new TransportAddress(InetAddress.getByName(node), defaultPort);
         }
+        return new TransportAddress(InetAddress.getByName(node.substring(0, colon)), Integer.parseInt(node.substring(colon + 1)));
+    }
+
+    /**
+     * Whether {@link #initClient()} set up the bulk indexer
+     */
+    public boolean isInitialized() {
+        return bulkIndexer != null;
+    }
+
+    public BulkIndexer getBulkIndexer() {
+        return bulkIndexer;
     }
 
+    /**
+     * The transport client, null if ES is reached over HTTP
+     */
     public TransportClient getClient() {
         return client;
     }
+
+    /**
+     * Hands the document to the bulk indexer, the listener is notified once it's indexed or rejected
+     */
+    public void index(String index, String id, XContentBuilder source, IndexListener listener) {
+        checkInitialized();
+        bulkIndexer.add(new IndexRequest(index, "_doc", id).source(source), listener);
+    }
+
+    /**
+     * Same as {@link #index(String, String, XContentBuilder, IndexListener)} for an already serialized JSON source
+     */
+    public void index(String index, String id, BytesReference source, IndexListener listener) {
+        checkInitialized();
+        bulkIndexer.add(new IndexRequest(index, "_doc", id).source(source, XContentType.JSON), listener);
+    }
+
+    /**
+     * Deletes the documents in a single bulk request, sent right away without the retries of the bulk indexer.
+     * Failures are only logged.
+     */
+    public void delete(String index, Collection<String> ids) {
+        checkInitialized();
+        BulkRequest request = new BulkRequest();
+        for (String id : ids) {
+            request.add(new DeleteRequest(index, "_doc", id));
+        }
+
+        sender.bulk(request, new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse response) {
+                if (response.hasFailures()) {
+                    logger.error("Could not delete documents of index " + index + ": " + response.buildFailureMessage());
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                logger.error("Could not delete " + ids.size() + " documents of index " + index, e);
+            }
+        });
+    }
+
+    private void checkInitialized() {
+        if (bulkIndexer == null) {
+            throw new IllegalStateException("ES client is not initialized, could not connect to ES");
+        }
+    }
+
+    /**
+     * Flushes pending documents and closes the connections to the cluster
+     */
+    public void close() {
+        if (bulkIndexer != null) {
+            try {
+                if (!bulkIndexer.close(30, TimeUnit.SECONDS)) {
+                    logger.warn("Timed out waiting for pending bulk requests");
+                }
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted while flushing pending bulk requests");
+            }
+        }
+
+        if (sender != null) {
+            try {
+                sender.close();
+            } catch (IOException e) {
+                logger.warn("Could not close the connections to ES", e);
+            }
+        }
+    }
 }
@@ -0,0 +1,21 @@
+package ESTransport;
+
+/**
+ * Receives the outcome of a single document handed to {@link BulkIndexer}.
+ * Callbacks are invoked from the indexer's dispatch thread, never from the
+ * thread that submitted the document. Once the indexer is closed, they run on
+ * the common pool.
+ */
+public interface IndexListener {
+    void onIndexed(String index, String id);
+
+    void onFailure(String index, String id, Throwable cause);
+
+    /**
+     * ES kept rejecting the document, it's kept in the dead-letter queue on disk and indexed once replayed.
+     * By default it counts as indexed.
+     */
+    default void onDeadLettered(String index, String id) {
+        onIndexed(index, id);
+    }
+}
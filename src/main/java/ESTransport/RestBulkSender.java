@@ -0,0 +1,120 @@
+package ESTransport;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Sends bulk requests to the _bulk endpoint over HTTP (port 9200). The client spreads them round-robin over
+ * its hosts and leaves a host which failed out for a while.
+ */
+class RestBulkSender implements BulkSender {
+    private final static byte NEWLINE = '\n';
+
+    private final RestClient client;
+
+    RestBulkSender(HttpHost... hosts) {
+        this.client = RestClient.builder(hosts).build();
+    }
+
+    @Override
+    public void bulk(BulkRequest request, ActionListener<BulkResponse> listener) {
+        HttpEntity entity;
+        try {
+            entity = new ByteArrayEntity(toNdJson(request), ContentType.create("application/x-ndjson"));
+        } catch (IOException | IllegalArgumentException e) {
+            listener.onFailure(new IllegalArgumentException("Could not serialize bulk request", e));
+            return;
+        }
+
+        client.performRequestAsync("POST", "/_bulk", Collections.emptyMap(), entity, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                BulkResponse bulkResponse;
+                try (InputStream content = response.getEntity().getContent();
+                     XContentParser parser = XContentType.JSON.xContent().createParser(NamedXContentRegistry.EMPTY,
+                             DeprecationHandler.THROW_UNSUPPORTED_OPERATION, content)) {
+                    bulkResponse = BulkResponse.fromXContent(parser);
+                } catch (IOException | RuntimeException e) {
+                    listener.onFailure(e);
+                    return;
+                }
+                listener.onResponse(bulkResponse);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                if (e instanceof ResponseException) {
+                    // carries the status, so an overloaded cluster is told apart from a bad request
+                    int status = ((ResponseException) e).getResponse().getStatusLine().getStatusCode();
+                    RestStatus restStatus = RestStatus.fromCode(status);
+                    e = new ElasticsearchStatusException(e.getMessage(),
+                            restStatus != null ? restStatus : RestStatus.INTERNAL_SERVER_ERROR, e);
+                }
+                listener.onFailure(e);
+            }
+        });
+    }
+
+    /**
+     * An action line and a source line per indexed document, an action line per deleted one
+     */
+    private static byte[] toNdJson(BulkRequest request) throws IOException {
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            for (DocWriteRequest<?> docRequest : request.requests()) {
+                if (!(docRequest instanceof IndexRequest) && !(docRequest instanceof DeleteRequest)) {
+                    throw new IllegalArgumentException("Only index and delete requests are supported: " + docRequest);
+                }
+
+                XContentBuilder action = jsonBuilder()
+                        .startObject()
+                        .startObject(docRequest instanceof IndexRequest ? "index" : "delete")
+                        .field("_index", docRequest.index())
+                        .field("_type", docRequest.type())
+                        .field("_id", docRequest.id())
+                        .endObject()
+                        .endObject();
+                BytesReference.bytes(action).writeTo(out);
+                out.writeByte(NEWLINE);
+
+                // a delete has no source line
+                if (docRequest instanceof IndexRequest) {
+                    ((IndexRequest) docRequest).source().writeTo(out);
+                    out.writeByte(NEWLINE);
+                }
+            }
+            return BytesReference.toBytes(out.bytes());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+}
@@ -0,0 +1,28 @@
+package ESTransport;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.transport.TransportClient;
+
+/**
+ * Sends bulk requests over the transport protocol (port 9300). The client spreads them round-robin over its
+ * nodes, with sniffing over all data nodes of the cluster.
+ */
+class TransportBulkSender implements BulkSender {
+    private final TransportClient client;
+
+    TransportBulkSender(TransportClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public void bulk(BulkRequest request, ActionListener<BulkResponse> listener) {
+        client.bulk(request, listener);
+    }
+
+    @Override
+    public void close() {
+        client.close();
+    }
+}
@@ -1,41 +1,78 @@
 package MonitoringThreads;
 
 
-import ESTransport.ESClient;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
 import org.apache.tika.exception.TikaException;
+import org.apache.tika.extractor.EmbeddedDocumentExtractor;
 import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
 import org.apache.tika.parser.ParseContext;
 import org.apache.tika.parser.Parser;
 import org.apache.tika.parser.pkg.PackageParser;
 import org.apache.tika.sax.BodyContentHandler;
-import org.elasticsearch.action.index.IndexResponse;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+import parser.ChunkingContentHandler;
 import parser.FilesParser;
+import parser.JsonContentHandler;
+import parser.ParserPool;
+import parser.SpooledInput;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
-
-import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ArchiveRunnable extends BaseRunnable {
     private final static Logger logger = LogManager.getLogger(ArchiveRunnable.class);
     private final static String ARCHIVE_DIR = "archive";
 
+    // index every entry as its own document instead of the whole archive as one
+    private final static boolean SPLIT_ENTRIES = Boolean.getBoolean("emirates.archive.entries");
+    // limits of the entries of one archive, nested archives included
+    private final static int MAX_DEPTH = Integer.getInteger("emirates.archive.depth", 3);
+    private final static int MAX_ENTRIES = Integer.getInteger("emirates.archive.entries.max", 10000);
+    private final static long MAX_EXPANDED_SIZE = Long.getLong("emirates.archive.expanded.mb", 1024L) * 1024 * 1024;
+    // entries bigger than this wait for their parse in a temporary file
+    private final static int SPOOL_MEMORY_LIMIT = 1024 * 1024;
+
     public ArchiveRunnable(Path dir) throws IOException {
         super(dir.resolve(ARCHIVE_DIR));
     }
 
-    void indexFileContent(Path fileToIndex) {
-        Parser parser = new FilesParser(new PackageParser());
-        ParseContext context = new ParseContext();
-        context.set(Parser.class, parser);
+    public void indexFileContent(Path fileToIndex) {
+        indexArchive(this, fileToIndex);
+    }
 
-        ContentHandler contentHandler = new BodyContentHandler();
+    /**
+     * Extracts the archive and indexes it into the archive index, on behalf of the runnable which stored it
+     */
+    static void indexArchive(BaseRunnable host, Path fileToIndex) {
+        if (SPLIT_ENTRIES) {
+            indexEntries(host, fileToIndex);
+            return;
+        }
+
+        FilesParser parser = ParserPool.INSTANCE.getIsolatedParser(PackageParser.class);
+        ParseContext context = ParserPool.INSTANCE.borrowContext(parser);
+
+        // the body text is written straight into the document source, or into chunk documents if it may be large
+        JsonContentHandler document = ParserPool.INSTANCE.getJsonContentHandler();
+        ChunkingContentHandler chunks = null;
+        ContentHandler contentHandler;
+        if (CHUNK_SIZE > 0) {
+            chunks = host.newChunkingHandler(ARCHIVE_DIR, fileToIndex);
+            contentHandler = new BodyContentHandler(chunks);
+        } else {
+            contentHandler = new BodyContentHandler(document.startStreamedField("content"));
+        }
         Metadata metadata = new Metadata();
 
         try(InputStream stream = TikaInputStream.get(fileToIndex)) {
@@ -43,23 +80,237 @@ public class ArchiveRunnable extends BaseRunnable {
         } catch (IOException | TikaException | SAXException e) {
            logger.error("Could not extract content from file: " + fileToIndex, e);
 
-           storeFailedFile(fileToIndex);
+           host.storeFailedFile(fileToIndex, e.toString());
+           if (chunks != null) {
+               // the chunks indexed so far are deleted again
+               chunks.discard();
+           }
            return;
+        } finally {
+            ParserPool.INSTANCE.returnContext(parser, context);
         }
 
-        try {
-            IndexResponse response = ESClient.INSTANCE.getClient().prepareIndex(ARCHIVE_DIR, "_doc", getFileRelativeName(fileToIndex))
-                    .setSource(jsonBuilder()
-                            .startObject()
-                            .field("content", contentHandler.toString())
-                            .field("metadata", metadata.toString())
-                            .endObject()).get();
+        if (chunks != null) {
+            document.field("chunks", chunks.finish());
+        }
 
-           if (logger.isInfoEnabled()) {
-               logger.info("Indexed file: " + getFileRelativeName(fileToIndex) + ", index ID=" + response.getId());
-           }
-        } catch (IOException e) {
-            logger.error("Could not index archive file : " + getFileRelativeName(fileToIndex), e);
+        host.index(ARCHIVE_DIR, fileToIndex, document
+                .field("metadata", metadata.toString()));
+    }
+
+    /**
+     * Reads the archive once and parses its entries in parallel on the child pool, each one is indexed as
+     * {"archive": archive id, "parent": id of the archive or nested archive, "entry": name, "depth": depth,
+     * "content": text, "metadata": metadata} with id &lt;parent id&gt;!/&lt;entry&gt;. The archive's own document
+     * gets the metadata and the entry counts once all entries are done. If the archive fails, the documents of its
+     * entries are deleted again, as are those of a nested archive which fails.
+     */
+    private static void indexEntries(BaseRunnable host, Path fileToIndex) {
+        String archiveId = host.getFileRelativeName(fileToIndex);
+        Expansion expansion = new Expansion();
+        ChildDocuments children = new ChildDocuments();
+        EntryExtractor extractor = new EntryExtractor(host, ParseSandbox.INSTANCE.current(), archiveId, archiveId, 1,
+                expansion, children);
+        FilesParser parser = ParserPool.INSTANCE.getParser(PackageParser.class);
+        Metadata metadata = new Metadata();
+
+        try(InputStream stream = TikaInputStream.get(fileToIndex)) {
+            parser.parse(stream, new DefaultHandler(), metadata, extractor.context(parser));
+        } catch (IOException | TikaException | SAXException e) {
+            logger.error("Could not extract content from file: " + fileToIndex, e);
+
+            extractor.join();
+            children.discard();
+            host.storeFailedFile(fileToIndex, e.toString());
+            return;
+        }
+        extractor.join();
+
+        if (expansion.skipped.get() > 0) {
+            logger.warn(expansion.skipped.get() + " entries of " + fileToIndex + " were skipped, limits reached");
+        }
+
+        host.index(ARCHIVE_DIR, fileToIndex, ParserPool.INSTANCE.getJsonContentHandler()
+                .field("entries", expansion.entries.get())
+                .field("failedEntries", expansion.failed.get())
+                .field("skippedEntries", expansion.skipped.get())
+                .field("metadata", metadata.toString()));
+    }
+
+    /**
+     * What one archive has expanded to so far
+     */
+    private static class Expansion {
+        final AtomicInteger entries = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger skipped = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+    }
+
+    /**
+     * Takes the entries out of the parse of an archive, copies each one and forks its parse.
+     * Only used by the thread parsing the archive.
+     */
+    private static class EntryExtractor implements EmbeddedDocumentExtractor {
+        private final BaseRunnable host;
+        // the entries are parsed on its behalf
+        private final ParseSandbox.Extraction extraction;
+        private final String archiveId;
+        private final String parentId;
+        private final int depth;
+        private final Expansion expansion;
+        // the documents of the entries and everything below them
+        private final ChildDocuments children;
+        private final List<EntryTask> tasks = new ArrayList<>();
+        private int position = 0;
+
+        EntryExtractor(BaseRunnable host, ParseSandbox.Extraction extraction, String archiveId, String parentId, int depth,
+                       Expansion expansion, ChildDocuments children) {
+            this.host = host;
+            this.extraction = extraction;
+            this.archiveId = archiveId;
+            this.parentId = parentId;
+            this.depth = depth;
+            this.expansion = expansion;
+            this.children = children;
+        }
+
+        ParseContext context(Parser parser) {
+            ParseContext context = new ParseContext();
+            context.set(Parser.class, parser);
+            context.set(EmbeddedDocumentExtractor.class, this);
+            return context;
+        }
+
+        @Override
+        public boolean shouldParseEmbedded(Metadata metadata) {
+            if (ParseSandbox.INSTANCE.isCancelled()) {
+                return false;
+            }
+            if (depth > MAX_DEPTH || expansion.entries.get() >= MAX_ENTRIES || expansion.bytes.get() >= MAX_EXPANDED_SIZE) {
+                expansion.skipped.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void parseEmbedded(InputStream stream, ContentHandler handler, Metadata metadata, boolean outputHtml) throws IOException {
+            String name = metadata.get(Metadata.RESOURCE_NAME_KEY);
+            if (name == null) {
+                name = "entry-" + position;
+            }
+            position++;
+
+            if (expansion.entries.incrementAndGet() > MAX_ENTRIES) {
+                expansion.entries.decrementAndGet();
+                expansion.skipped.incrementAndGet();
+                return;
+            }
+
+            SpooledInput input = SpooledInput.spool(stream, SPOOL_MEMORY_LIMIT, MAX_EXPANDED_SIZE - expansion.bytes.get());
+            if (input == null) {
+                expansion.bytes.set(MAX_EXPANDED_SIZE);
+                expansion.entries.decrementAndGet();
+                expansion.skipped.incrementAndGet();
+                return;
+            }
+            expansion.bytes.addAndGet(input.size());
+
+            EntryTask task = new EntryTask(this, name, input);
+            tasks.add(task);
+            forkChild(task);
+        }
+
+        /**
+         * Waits for the entries forked so far
+         */
+        void join() {
+            for (EntryTask task : tasks) {
+                task.join();
+            }
+        }
+    }
+
+    /**
+     * Parses and indexes one entry, its own entries are forked in turn until the depth limit
+     */
+    private static class EntryTask extends RecursiveAction {
+        private final EntryExtractor parent;
+        private final String name;
+        private final SpooledInput input;
+
+        EntryTask(EntryExtractor parent, String name, SpooledInput input) {
+            this.parent = parent;
+            this.name = name;
+            this.input = input;
+        }
+
+        @Override
+        protected void compute() {
+            if (!ParseSandbox.INSTANCE.runChild(parent.extraction, this::parse)) {
+                closeInput(parent.parentId + "!/" + name);
+            }
+        }
+
+        private void parse() {
+            String id = parent.parentId + "!/" + name;
+            FilesParser parser = ParserPool.INSTANCE.getParser(AutoDetectParser.class);
+            // the entry's chunks and, if it's an archive, its own entries
+            ChildDocuments children = new ChildDocuments(parent.children);
+            EntryExtractor extractor = new EntryExtractor(parent.host, parent.extraction, parent.archiveId, id,
+                    parent.depth + 1, parent.expansion, children);
+
+            JsonContentHandler document = ParserPool.INSTANCE.getJsonContentHandler()
+                    .field("archive", parent.archiveId)
+                    .field("parent", parent.parentId)
+                    .field("entry", name)
+                    .field("depth", parent.depth);
+            ChunkingContentHandler chunks = null;
+            ContentHandler contentHandler;
+            if (CHUNK_SIZE > 0) {
+                chunks = parent.host.newChunkingHandler(ARCHIVE_DIR, id, children);
+                contentHandler = new BodyContentHandler(chunks);
+            } else {
+                contentHandler = new BodyContentHandler(document.startStreamedField("content"));
+            }
+            Metadata metadata = new Metadata();
+            metadata.set(Metadata.RESOURCE_NAME_KEY, name);
+
+            try(InputStream stream = input.open()) {
+                parser.parse(stream, contentHandler, metadata, extractor.context(parser));
+            } catch (IOException | TikaException | SAXException | RuntimeException e) {
+                // a broken entry doesn't fail the archive
+                logger.warn("Could not extract content from entry: " + id, e);
+
+                parent.expansion.failed.incrementAndGet();
+                document.bytes();
+                if (chunks != null) {
+                    chunks.discard();
+                }
+                // the chunks and nested entries indexed so far are deleted again
+                children.discard();
+                return;
+            } finally {
+                closeInput(id);
+                extractor.join();
+            }
+
+            if (chunks != null) {
+                document.field("chunks", chunks.finish());
+            }
+
+            parent.host.indexChild(ARCHIVE_DIR, id, document
+                    .field("metadata", metadata.toString())
+                    .bytes(), parent.children);
+        }
+
+        private void closeInput(String id) {
+            try {
+                input.close();
+            } catch (IOException e) {
+                logger.warn("Could not delete the copy of entry: " + id, e);
+            }
         }
     }
 
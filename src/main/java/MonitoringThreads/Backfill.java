@@ -0,0 +1,338 @@
+package MonitoringThreads;
+
+import metrics.Metrics;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stores and queues the files already lying in a runnable's directory tree. Directories are walked in parallel and
+ * their files handed over in batches, each file as soon as it's listed. Handing over blocks while the runnable's
+ * lane is full, so the walk runs at the pace of the extraction.
+ *
+ * When the runnable watches its tree, every directory is registered before it's listed, so a file created meanwhile
+ * is either listed or reported by the watcher. That's how the watched tree is walked on start, and every
+ * subdirectory created later or missed after lost events. A one-shot backfill instead checkpoints the subtrees whose
+ * files are all stored in &lt;working dir&gt;/.&lt;folder&gt;.backfill, a resumed backfill skips them. The checkpoint
+ * is deleted once the whole tree is done.
+ */
+public class Backfill implements Runnable {
+    private final static Logger logger = LogManager.getLogger(Backfill.class);
+
+    // walks the trees and stores their files, shared by all runnables
+    private final static ForkJoinPool pool = new ForkJoinPool(
+            Integer.getInteger("emirates.backfill.threads", Runtime.getRuntime().availableProcessors()));
+
+    // files handed over by one task, and batches of a directory in flight before the listing waits for the oldest
+    private final static int BATCH_SIZE = 128;
+    private final static int MAX_BATCHES = 2 * pool.getParallelism();
+    // batches being handed over. A handover waiting for a full lane makes the pool add threads on newer JDKs,
+    // which would start ever more directories without finishing any.
+    private final static Semaphore handovers = new Semaphore(pool.getParallelism());
+
+    private final BaseRunnable host;
+    private final Path root;
+    private final boolean watching;
+    private final boolean recovery;
+    private final Checkpoint checkpoint;
+
+    private final LongAdder directories = new LongAdder();
+    private final LongAdder files = new LongAdder();
+    private final LongAdder leftFiles = new LongAdder();
+    private final LongAdder skippedDirectories = new LongAdder();
+    private volatile long startedAt = 0;
+    private volatile boolean complete = false;
+
+    /**
+     * @param watching register every directory with the host's watcher, no checkpoint is kept then
+     * @param recovery the watcher lost events of the root, its subdirectories which are registered already and the
+     *                 files being stored are skipped
+     */
+    Backfill(BaseRunnable host, Path root, boolean watching, boolean recovery) throws IOException {
+        this.host = host;
+        this.root = root;
+        this.watching = watching;
+        this.recovery = recovery;
+        this.checkpoint = watching ? null
+                : new Checkpoint(Paths.get(System.getProperty("user.dir"), "." + host.getFolderName() + ".backfill"), root);
+    }
+
+    /**
+     * Exposes the progress as the &lt;folder&gt;.backfill.files and .directories gauges, for the walk of a whole tree
+     */
+    Backfill withGauges() {
+        Metrics.INSTANCE.gauge(host.getFolderName() + ".backfill.files", files::sum);
+        Metrics.INSTANCE.gauge(host.getFolderName() + ".backfill.directories", directories::sum);
+        return this;
+    }
+
+    /**
+     * Walks the tree and returns once all its files are stored or left for later
+     */
+    @Override
+    public void run() {
+        startedAt = System.nanoTime();
+        DirectoryTask task = new DirectoryTask(root);
+        complete = ForkJoinTask.getPool() == pool ? task.invoke() : pool.invoke(task);
+
+        if (checkpoint != null) {
+            checkpoint.close();
+            if (complete) {
+                checkpoint.delete();
+            }
+        }
+    }
+
+    /**
+     * Runs the walk of a watched tree in the background
+     */
+    void start(Runnable onDone) {
+        start(() -> {
+        }, onDone);
+    }
+
+    void start(Runnable onStart, Runnable onDone) {
+        pool.execute(() -> {
+            onStart.run();
+            run();
+            onDone.run();
+        });
+    }
+
+    /**
+     * Lists a directory, hands its files over in batches and forks its subdirectories
+     *
+     * @return true if all files of the subtree were stored
+     */
+    private class DirectoryTask extends RecursiveTask<Boolean> {
+        private final Path dir;
+
+        DirectoryTask(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected Boolean compute() {
+            if (checkpoint != null && checkpoint.isDone(dir)) {
+                skippedDirectories.increment();
+                return true;
+            }
+
+            boolean done = true;
+            List<DirectoryTask> subtasks = new ArrayList<>();
+            Deque<FilesTask> batches = new ArrayDeque<>();
+            List<Path> batch = new ArrayList<>(BATCH_SIZE);
+            try {
+                if (watching) {
+                    host.register(dir);
+                }
+
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (Path child : stream) {
+                        if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                            if (recovery && host.isRegistered(child)) {
+                                // its own events weren't lost
+                                continue;
+                            }
+                            DirectoryTask subtask = new DirectoryTask(child);
+                            subtask.fork();
+                            subtasks.add(subtask);
+                        } else if (Files.isRegularFile(child) && !(recovery && host.isStoring(child))) {
+                            batch.add(child);
+                            if (batch.size() == BATCH_SIZE) {
+                                FilesTask task = new FilesTask(batch);
+                                task.fork();
+                                batches.add(task);
+                                batch = new ArrayList<>(BATCH_SIZE);
+                            }
+                            // a huge directory isn't held in memory
+                            if (batches.size() > MAX_BATCHES) {
+                                done &= batches.poll().join();
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                logger.error("Could not backfill directory: " + dir, e);
+                done = false;
+            }
+
+            if (!batch.isEmpty()) {
+                done &= new FilesTask(batch).invoke();
+            }
+            for (FilesTask task : batches) {
+                done &= task.join();
+            }
+            for (DirectoryTask subtask : subtasks) {
+                done &= subtask.join();
+            }
+
+            directories.increment();
+            if (done && checkpoint != null) {
+                checkpoint.done(dir);
+            }
+            return done;
+        }
+    }
+
+    /**
+     * Stores and queues a batch of files
+     *
+     * @return true if all of them were stored
+     */
+    private class FilesTask extends RecursiveTask<Boolean> {
+        private final List<Path> batch;
+
+        FilesTask(List<Path> batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        protected Boolean compute() {
+            try {
+                handovers.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                leftFiles.add(batch.size());
+                return false;
+            }
+
+            boolean done = true;
+            try {
+                for (Path file : batch) {
+                    files.increment();
+                    if (!host.backfillFile(file)) {
+                        leftFiles.increment();
+                        done = false;
+                    }
+                }
+            } finally {
+                handovers.release();
+            }
+            return done;
+        }
+    }
+
+    /**
+     * Subtrees whose files are all stored, one path relative to the root per line
+     */
+    private static class Checkpoint {
+        private final Path file;
+        private final Path root;
+        private final Set<String> done = new HashSet<>();
+        private BufferedWriter writer;
+
+        Checkpoint(Path file, Path root) throws IOException {
+            this.file = file;
+            this.root = root;
+            if (Files.exists(file)) {
+                done.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+                logger.info("Resuming backfill of " + root + ", " + done.size() + " directories are done");
+            }
+            this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+        synchronized boolean isDone(Path dir) {
+            return done.contains(root.relativize(dir).toString());
+        }
+
+        /**
+         * Written through to the file system, a crash may only lose the last lines, they're walked again then
+         */
+        synchronized void done(Path dir) {
+            String relative = root.relativize(dir).toString();
+            if (writer == null || relative.isEmpty()) {
+                return;
+            }
+
+            try {
+                writer.write(relative);
+                writer.newLine();
+                writer.flush();
+            } catch (IOException e) {
+                logger.warn("Could not checkpoint backfill of: " + dir, e);
+            }
+        }
+
+        synchronized void close() {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                logger.warn("Could not close backfill checkpoint: " + file, e);
+            }
+            writer = null;
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                logger.warn("Could not delete backfill checkpoint: " + file, e);
+            }
+        }
+    }
+
+    public String getFolderName() {
+        return host.getFolderName();
+    }
+
+    /**
+     * Whether the walk is over and every file of the tree was stored
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Whether every stored file is indexed, or indexed as failed
+     */
+    public boolean isIndexed() {
+        return host.getPendingFiles() == 0 && host.getTrackedFiles() == 0;
+    }
+
+    public long getDirectories() {
+        return directories.sum();
+    }
+
+    public long getFiles() {
+        return files.sum();
+    }
+
+    /**
+     * Number of files which couldn't be stored or were still being written, a later backfill tries them again
+     */
+    public long getLeftFiles() {
+        return leftFiles.sum();
+    }
+
+    public String getProgress() {
+        long elapsed = startedAt == 0 ? 0 : System.nanoTime() - startedAt;
+        return String.format(Locale.ROOT, "%s: %d directories (%d done before), %d files (%d left), %.1f files/s, "
+                        + "%d queued, %d not indexed yet", getFolderName(), getDirectories(), skippedDirectories.sum(),
+                getFiles(), getLeftFiles(), elapsed > 0 ? getFiles() / (elapsed / (double) TimeUnit.SECONDS.toNanos(1)) : 0,
+                host.getQueueDepth(), host.getPendingFiles());
+    }
+}
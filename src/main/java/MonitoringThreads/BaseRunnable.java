@@ -1,23 +1,27 @@
 package MonitoringThreads;
 
 import ESTransport.ESClient;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.FilenameUtils;
-import org.apache.http.util.TextUtils;
+import ESTransport.IndexListener;
+import metrics.LatencyHistogram;
+import metrics.Metrics;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
-import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import parser.ChunkingContentHandler;
+import parser.JsonContentHandler;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.*;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import static java.nio.file.StandardWatchEventKinds.*;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
@@ -26,12 +30,57 @@ import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 abstract class BaseRunnable implements Runnable {
     private final static Logger logger = LogManager.getLogger(BaseRunnable.class);
 
+    private final Path root;
     private final WatchService watcher;
     private final Map<WatchKey,Path> keys;
-    private boolean trace = false;
+    private final Set<Path> registeredDirs = ConcurrentHashMap.newKeySet();
+    // files handed to storeFile and not done yet, reconciliation skips them
+    private final Set<Path> storingFiles = ConcurrentHashMap.newKeySet();
+    // directories with a reconciliation scan scheduled but not started
+    private final Set<Path> reconcilingDirs = ConcurrentHashMap.newKeySet();
+    private volatile boolean trace = false;
     private final String processedFolder = System.getProperty("user.dir") + File.separator + getFolderName();
     private final File processedFolderDir = new File(processedFolder);
-    private final BlockingQueue<Path /*file paths to be processed*/> filePathsQueue = new LinkedBlockingDeque<>();
+    private final IndexingScheduler.Lane lane;
+    private final WorkJournal journal;
+    private final StabilityTracker stabilityTracker;
+    private final ContentHashIndex contentHashIndex;
+    private final ProcessedStore processedStore;
+
+    // content of the stored files until they're indexed or failed
+    private final Map<Path, ContentHashIndex.ContentHash> storedHashes = new ConcurrentHashMap<>();
+    // cache entries of the files being extracted, by file id
+    private final Map<String, ExtractionCache.Entry> cacheEntries = new ConcurrentHashMap<>();
+
+    // latencies of the pipeline stages of the files of this folder
+    private final LatencyHistogram watchLatency = Metrics.INSTANCE.histogram(getFolderName() + ".watch");
+    private final LatencyHistogram storeLatency = Metrics.INSTANCE.histogram(getFolderName() + ".store");
+    private final LatencyHistogram parseLatency = Metrics.INSTANCE.histogram(getFolderName() + ".parse");
+    private final LatencyHistogram jsonLatency = Metrics.INSTANCE.histogram(getFolderName() + ".json");
+    private final LatencyHistogram indexLatency = Metrics.INSTANCE.histogram(getFolderName() + ".es");
+    private final LongAdder processedFiles = Metrics.INSTANCE.counter(getFolderName() + ".files");
+    private final LongAdder processedBytes = Metrics.INSTANCE.counter(getFolderName() + ".bytes");
+    private final LongAdder failedFiles = Metrics.INSTANCE.counter(getFolderName() + ".failed");
+
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final AtomicLong rejectedSubmissions = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    private final AtomicLong recoveredFiles = new AtomicLong();
+
+    private final static String FAILED_INDEX = "failed";
+    private final static Path WORKING_DIR = Paths.get(System.getProperty("user.dir"));
+
+    // extracted text is split into chunk documents of this many characters, 0 to index it as one document
+    final static int CHUNK_SIZE = Integer.getInteger("emirates.chunk.chars", 0);
+    // characters of all chunks of a file, beyond them the file fails
+    private final static long MAX_CHUNKED_CHARS = Long.getLong("emirates.chunk.chars.max", 100L * 1000 * 1000);
+
+    // index a document for a duplicate's name instead of only dropping the file
+    private final static boolean ALIAS_DUPLICATES = Boolean.getBoolean("emirates.dedup.alias");
+
+    // parses the parts of a file in parallel, like archive entries or mail attachments, shared by all runnables
+    private final static ForkJoinPool childPool = new ForkJoinPool(
+            Integer.getInteger("emirates.child.threads", Runtime.getRuntime().availableProcessors()));
 
     @SuppressWarnings("unchecked")
     private static <T> WatchEvent<T> cast(WatchEvent<?> event) {
@@ -41,36 +90,66 @@ abstract class BaseRunnable implements Runnable {
     /**
      * Register the given directory with the WatchService
      */
-    private void register(Path dir) throws IOException {
-        WatchKey key = dir.register(watcher, ENTRY_CREATE);
-        if (trace) {
-            Path prev = keys.get(key);
+    void register(Path dir) throws IOException {
+        WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+        Path prev = keys.put(key, dir);
+        registeredDirs.add(dir);
+        if (trace && logger.isDebugEnabled()) {
             if (prev == null) {
-                System.out.format("register: %s\n", dir);
-            } else {
-                if (!dir.equals(prev)) {
-                    System.out.format("update: %s -> %s\n", prev, dir);
-                }
+                logger.debug("register: " + dir);
+            } else if (!dir.equals(prev)) {
+                logger.debug("update: " + prev + " -> " + dir);
             }
         }
-        keys.put(key, dir);
+    }
+
+    boolean isRegistered(Path dir) {
+        return registeredDirs.contains(dir);
     }
 
     /**
-     * Creates a WatchService and registers the given directory
+     * Whether the file is being stored right now
      */
-    BaseRunnable(Path dir) throws IOException {
+    boolean isStoring(Path file) {
+        return storingFiles.contains(file);
+    }
 
-        // add the files to the queue so that they can be later processed
-        Files.walk(dir).filter(Files::isRegularFile).forEach(this::storeFileAndQueueFilePath);
+    /**
+     * Registers a new directory and its subdirectories in the background, then stores and queues the files found
+     * in them
+     */
+    private void scan(Path dir) {
+        try {
+            new Backfill(this, dir, true, false).start(() -> {
+            });
+        } catch (IOException e) {
+            logger.error("Could not scan directory: " + dir, e);
+        }
+    }
 
-        this.watcher = FileSystems.getDefault().newWatchService();
-        this.keys = new HashMap<>();
+    /**
+     * Called after the watcher lost events of the given directory. Stores the files still lying in it, skipping the
+     * ones being stored right now, and scans the subdirectories which were created unnoticed.
+     */
+    private void reconcile(Path dir) {
+        Backfill walk;
+        try {
+            walk = new Backfill(this, dir, true, true);
+        } catch (IOException e) {
+            logger.error("Could not reconcile directory: " + dir, e);
+            return;
+        }
 
-        register(dir);
+        // scheduled once until it starts
+        walk.start(() -> reconcilingDirs.remove(dir),
+                () -> recoveredFiles.addAndGet(walk.getFiles() - walk.getLeftFiles()));
+    }
 
-        // enable trace after initial registration
-        this.trace = true;
+    /**
+     * Creates a WatchService for the given directory, it's registered once the runnable runs
+     */
+    BaseRunnable(Path dir) throws IOException {
+        this.root = dir;
 
         // create corresponding processed files folder
         if (!processedFolderDir.exists())  {
@@ -81,7 +160,42 @@ abstract class BaseRunnable implements Runnable {
             }
         }
 
-        startIndexing();
+        this.processedStore = ProcessedStore.create(processedFolderDir.toPath());
+
+        // file paths to be processed are queued on the shared scheduler
+        this.lane = IndexingScheduler.INSTANCE.register(this);
+
+        // content of the files stored so far, survives restarts
+        this.contentHashIndex = new ContentHashIndex(Paths.get(System.getProperty("user.dir"), "." + getFolderName() + ".hashes"));
+
+        // requeue the stored files which weren't indexed before the last shutdown
+        this.journal = new WorkJournal(Paths.get(System.getProperty("user.dir"), "." + getFolderName() + ".journal"),
+                Integer.getInteger("emirates.journal.size.mb", 16) * 1024 * 1024,
+                Long.getLong("emirates.journal.sync.ms", 100L));
+        for (Path path : journal.unacknowledged()) {
+            if (Files.exists(path)) {
+                queueFilePath(path);
+            } else {
+                journal.ack(path);
+            }
+        }
+
+        // files are stored once they're completely written
+        this.stabilityTracker = new StabilityTracker(this::storeFileAndQueueFilePath,
+                System.getProperty("emirates.watch.ignore", "*.tmp,*.part,*.crdownload,*.filepart,.~*,~$*"),
+                Long.getLong("emirates.watch.quiet.ms", 1000L),
+                Long.getLong("emirates.watch.tick.ms", 100L),
+                Integer.getInteger("emirates.watch.tracked.max", 10000));
+
+        this.watcher = FileSystems.getDefault().newWatchService();
+        this.keys = new ConcurrentHashMap<>();
+
+        Metrics.INSTANCE.gauge(getFolderName() + ".queued", this::getQueueDepth);
+        Metrics.INSTANCE.gauge(getFolderName() + ".workers", this::getActiveWorkers);
+        Metrics.INSTANCE.gauge(getFolderName() + ".tracked", this::getTrackedFiles);
+        Metrics.INSTANCE.gauge(getFolderName() + ".rejectedSubmissions", this::getRejectedSubmissions);
+        Metrics.INSTANCE.gauge(getFolderName() + ".overflows", this::getOverflows);
+        Metrics.INSTANCE.gauge(getFolderName() + ".recovered", this::getRecoveredFiles);
     }
 
     /**
@@ -99,7 +213,7 @@ abstract class BaseRunnable implements Runnable {
 
             Path dir = keys.get(key);
             if (dir == null) {
-                System.err.println("WatchKey not recognized!!");
+                logger.warn("WatchKey not recognized: " + key);
                 continue;
             }
 
@@ -107,6 +221,11 @@ abstract class BaseRunnable implements Runnable {
                 WatchEvent.Kind kind = event.kind();
 
                 if (kind == OVERFLOW) {
+                    overflows.incrementAndGet();
+                    if (reconcilingDirs.add(dir)) {
+                        logger.warn("Watch events lost, reconciling directory: " + dir);
+                        reconcile(dir);
+                    }
                     continue;
                 }
 
@@ -115,13 +234,21 @@ abstract class BaseRunnable implements Runnable {
                 Path name = ev.context();
                 Path child = dir.resolve(name);
 
-                storeFileAndQueueFilePath(child);
+                if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    // a modified directory only means its entries changed, they have their own events
+                    if (kind == ENTRY_CREATE) {
+                        scan(child);
+                    }
+                } else {
+                    observe(child);
+                }
             }
 
             // reset key and remove from set if directory no longer accessible
             boolean valid = key.reset();
             if (!valid) {
                 keys.remove(key);
+                registeredDirs.remove(dir);
 
                 // all directories are inaccessible
                 if (keys.isEmpty()) {
@@ -132,55 +259,403 @@ abstract class BaseRunnable implements Runnable {
     }
 
     void storeFailedFile(Path failedFile) {
+        storeFailedFile(failedFile, null);
+    }
+
+    /**
+     * Indexes the file as failed, with the reason if known
+     */
+    void storeFailedFile(Path failedFile, String reason) {
+        if (!ParseSandbox.INSTANCE.settle(failedFile)) {
+            return;
+        }
+        failedFiles.increment();
+        ContentHashIndex.ContentHash hash = storedHashes.remove(failedFile);
+        if (hash != null) {
+            contentHashIndex.remove(hash, getFileRelativeName(failedFile));
+        }
+
         if (logger.isInfoEnabled()) {
-            logger.info("Storing failed file:" + failedFile.getFileName().toString());
+            logger.info("Storing failed file:" + failedFile.getFileName().toString() + (reason != null ? ", reason: " + reason : ""));
         }
 
         try {
-            IndexResponse response = ESClient.INSTANCE.getClient().prepareIndex("failed", "_doc", getFileRelativeName(failedFile))
-                    .setSource(jsonBuilder()
-                            .startObject()
-                            .field("content", "failed")
-                            .endObject()).get();
-
-            if (logger.isInfoEnabled()) {
-                logger.info("Indexed failed file: " + failedFile.getFileName().toString() + ", index ID=" + response.getId());
+            XContentBuilder source = jsonBuilder()
+                    .startObject()
+                    .field("content", "failed");
+            String originalName = journal.originalName(failedFile);
+            if (originalName != null) {
+                source.field("name", originalName);
             }
+            if (reason != null) {
+                source.field("reason", reason);
+            }
+            ESClient.INSTANCE.index(FAILED_INDEX, getFileRelativeName(failedFile), source
+                    .endObject(), new IndexListener() {
+                @Override
+                public void onIndexed(String index, String id) {
+                    if (logger.isInfoEnabled()) {
+                        logger.info("Indexed failed file: " + id);
+                    }
+
+                    journal.ack(failedFile);
+                }
+
+                @Override
+                public void onFailure(String index, String id, Throwable cause) {
+                    logger.error("Could not index failed file : " + id, cause);
+
+                    journal.ack(failedFile);
+                }
+            });
         } catch (IOException e) {
             logger.error("Could not index failed file : " + failedFile.getFileName().toString(), e);
+
+            journal.ack(failedFile);
         }
 
     }
 
-    private void startIndexing() {
-        ExecutorService executorService = Executors.newSingleThreadExecutor();
-        executorService.submit(() -> {
-            while (true) {
-                try {
-                    Path path = filePathsQueue.take();
-                    indexFileContent(path);
+    /**
+     * Hands the document to the bulk indexer. If ES rejects it the file is stored as failed.
+     */
+    void index(String index, Path file, XContentBuilder source) {
+        index(index, file, BytesReference.bytes(source));
+    }
 
-                    Thread.sleep(2000);
-                } catch (InterruptedException e) {
-                    logger.warn("Interrupted while taking a path from queue");
-                }
+    /**
+     * Same as {@link #index(String, Path, XContentBuilder)} for a source written by a JsonContentHandler
+     */
+    void index(String index, Path file, BytesReference source) {
+        long handedOverAt = System.nanoTime();
+        if (!ParseSandbox.INSTANCE.settle(file)) {
+            logger.warn("Dropped the document of a file given up on: " + file);
+            return;
+        }
+
+        String id = getFileRelativeName(file);
+        ExtractionCache.Entry cacheEntry = cacheEntries.remove(id);
+        if (cacheEntry != null) {
+            cacheEntry.commit(index, id, source);
+        }
+        ESClient.INSTANCE.index(index, id, source, indexListener(file, handedOverAt));
+    }
+
+    /**
+     * Same as {@link #index(String, Path, BytesReference)}, closing the document of a JsonContentHandler
+     */
+    void index(String index, Path file, JsonContentHandler document) {
+        String originalName = journal.originalName(file);
+        if (originalName != null) {
+            // the file may be stored under another name, e.g. by its content
+            document.field("name", originalName);
+        }
+        BytesReference source = document.bytes();
+        jsonLatency.record(document.getBuildNanos());
+        index(index, file, source);
+    }
+
+    /**
+     * A handler indexing the text of the file as chunk documents with ids &lt;file id&gt;#&lt;chunk&gt;,
+     * each one is handed to the bulk indexer while the parse goes on. They're deleted if it's discarded.
+     */
+    ChunkingContentHandler newChunkingHandler(String index, Path file) {
+        return newChunkingHandler(index, getFileRelativeName(file));
+    }
+
+    /**
+     * Same as {@link #newChunkingHandler(String, Path)} for a document which isn't a file, e.g. an archive entry
+     */
+    ChunkingContentHandler newChunkingHandler(String index, String parentId) {
+        return newChunkingHandler(index, parentId, null);
+    }
+
+    /**
+     * Same as {@link #newChunkingHandler(String, String)}, the chunks are deleted as well if the parent's children
+     * are discarded
+     */
+    ChunkingContentHandler newChunkingHandler(String index, String parentId, ChildDocuments parent) {
+        ChildDocuments children = new ChildDocuments(parent);
+        return new ChunkingContentHandler(parentId, CHUNK_SIZE, MAX_CHUNKED_CHARS, new ChunkingContentHandler.ChunkListener() {
+            @Override
+            public void onChunk(int number, BytesReference source) {
+                indexChild(index, parentId + "#" + number, source, children);
+            }
+
+            @Override
+            public void onDiscard() {
+                children.discard();
             }
         });
+    }
+
+    /**
+     * Indexes a document derived from a file, like a chunk or an archive entry. Its outcome doesn't change
+     * the state of the file, failures are only logged. It's dropped if the file was given up on.
+     */
+    void indexChild(String index, String id, BytesReference source) {
+        indexChild(index, id, source, null);
+    }
+
+    /**
+     * Same as {@link #indexChild(String, String, BytesReference)}, the children are deleted again if discarded.
+     * It's dropped if they were discarded already.
+     */
+    void indexChild(String index, String id, BytesReference source, ChildDocuments children) {
+        if (!ParseSandbox.INSTANCE.admitChild(source.length())) {
+            logger.debug("Dropped the document of a file given up on: " + id);
+            return;
+        }
+
+        if (children != null && !children.handedOver()) {
+            logger.debug("Dropped the document of a discarded parse: " + id);
+            return;
+        }
+
+        ExtractionCache.Entry cacheEntry = cacheEntryOf(id);
+        if (cacheEntry != null) {
+            cacheEntry.add(index, id, source);
+        }
+        if (children != null) {
+            ESClient.INSTANCE.index(index, id, source, children);
+        } else {
+            ESClient.INSTANCE.index(index, id, source, CHILD_LISTENER);
+        }
+    }
+
+    /**
+     * The cache entry of the file a child document is derived from, its id starts with the file id
+     * followed by # or !/
+     */
+    private ExtractionCache.Entry cacheEntryOf(String childId) {
+        for (Map.Entry<String, ExtractionCache.Entry> entry : cacheEntries.entrySet()) {
+            String id = entry.getKey();
+            if (childId.startsWith(id) && (childId.startsWith("#", id.length()) || childId.startsWith("!/", id.length()))) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts caching the documents extracted from the file, null if the cache is disabled
+     */
+    private ExtractionCache.Entry openCacheEntry(Path file) {
+        if (!ExtractionCache.ENABLED) {
+            return null;
+        }
+
+        ContentHashIndex.ContentHash hash = storedHashes.get(file);
+        if (hash == null) {
+            return null;
+        }
+
+        try {
+            ExtractionCache.Entry entry = ExtractionCache.INSTANCE.open(hash);
+            cacheEntries.put(getFileRelativeName(file), entry);
+            return entry;
+        } catch (IOException e) {
+            logger.error("Could not cache the extraction of: " + file, e);
+            return null;
+        }
+    }
+
+    private void trackHash(Path file) {
+        try {
+            ContentHashIndex.ContentHash hash = ContentHashIndex.hash(file);
+            contentHashIndex.add(hash, getFileRelativeName(file));
+            storedHashes.put(file, hash);
+        } catch (IOException e) {
+            logger.error("Could not hash the content of: " + file, e);
+        }
+    }
+
+    /**
+     * Records the content of an indexed file for good
+     */
+    private void persistHash(Path file) {
+        ContentHashIndex.ContentHash hash = storedHashes.remove(file);
+        if (hash != null) {
+            contentHashIndex.persist(hash, getFileRelativeName(file));
+        }
+    }
+
+    /**
+     * Runs the task on the child pool, forked if called from one of its tasks
+     */
+    static void forkChild(ForkJoinTask<?> task) {
+        if (ForkJoinTask.getPool() == childPool) {
+            task.fork();
+        } else {
+            childPool.execute(task);
+        }
+    }
+
+    private final static IndexListener CHILD_LISTENER = new IndexListener() {
+        @Override
+        public void onIndexed(String index, String id) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Indexed: " + id + ", index=" + index);
+            }
+        }
+
+        @Override
+        public void onFailure(String index, String id, Throwable cause) {
+            logger.error("Could not index : " + id, cause);
+        }
+    };
+
+    private IndexListener indexListener(Path file, long handedOverAt) {
+        return new IndexListener() {
+            @Override
+            public void onIndexed(String index, String id) {
+                indexLatency.recordSince(handedOverAt);
+                if (logger.isInfoEnabled()) {
+                    logger.info("Indexed file: " + id + ", index=" + index);
+                }
+
+                persistHash(file);
+                journal.ack(file);
+            }
+
+            @Override
+            public void onFailure(String index, String id, Throwable cause) {
+                indexLatency.recordSince(handedOverAt);
+                logger.error("Could not index " + getFolderName() + " file : " + id, cause);
+
+                storeFailedFile(file);
+            }
+
+            @Override
+            public void onDeadLettered(String index, String id) {
+                logger.warn("Dead-lettered file: " + id + ", index=" + index + ", it's indexed once replayed");
+
+                persistHash(file);
+                journal.ack(file);
+            }
+        };
+    }
+
+    /**
+     * Called by a scheduler worker for every queued file
+     */
+    void process(Path path) {
+        activeWorkers.incrementAndGet();
+        if (!storedHashes.containsKey(path)) {
+            // stored before the last shutdown
+            trackHash(path);
+        }
+        ExtractionCache.Entry cacheEntry = openCacheEntry(path);
+        processedFiles.increment();
+        try {
+            processedBytes.add(Files.size(path));
+        } catch (IOException e) {
+            logger.debug("Could not read the size of: " + path);
+        }
+
+        // ended by the sandbox once the file is parsed
+        IndexingScheduler.INSTANCE.startExtraction();
+        long start = System.nanoTime();
+        try {
+            String failure = ParseSandbox.INSTANCE.run(path, () -> indexFileContent(path));
+            parseLatency.recordSince(start);
+            if (failure != null) {
+                storeFailedFile(path, failure);
+            }
+        } finally {
+            // still there if no document was handed over for the file
+            if (cacheEntry != null && cacheEntries.remove(getFileRelativeName(path), cacheEntry)) {
+                cacheEntry.abort();
+            }
+            activeWorkers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Number of stored files waiting for a worker
+     */
+    public int getQueueDepth() {
+        return lane.size();
+    }
+
+    /**
+     * Number of workers currently extracting and indexing a file
+     */
+    public int getActiveWorkers() {
+        return activeWorkers.get();
+    }
+
+    /**
+     * Number of times a file found the queue full and its submitter had to wait
+     */
+    public long getRejectedSubmissions() {
+        return rejectedSubmissions.get();
+    }
+
+    /**
+     * Number of stored files not indexed yet, they're queued again after a restart
+     */
+    public int getPendingFiles() {
+        return journal.size();
+    }
 
-        executorService.shutdown();
+    /**
+     * A one-shot backfill of the files already in the directory tree, which isn't watched then
+     */
+    public Backfill backfill() throws IOException {
+        return new Backfill(this, root, false, false).withGauges();
+    }
+
+    /**
+     * Number of files held back until their writes complete
+     */
+    public int getTrackedFiles() {
+        return stabilityTracker.size();
     }
 
-    abstract void indexFileContent(Path fileToBeIndexed);
+    /**
+     * Number of times the watcher reported lost events
+     */
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    /**
+     * Number of files stored by reconciliation scans after lost events
+     */
+    public long getRecoveredFiles() {
+        return recoveredFiles.get();
+    }
+
+    /**
+     * Extracts the file and hands its documents to the bulk indexer, public for the benchmarks
+     */
+    public abstract void indexFileContent(Path fileToBeIndexed);
 
     abstract String getFolderName();
 
+    /**
+     * Path of a stored file relative to the working directory, it's the ES id and the download URL of its document
+     */
     String getFileRelativeName(Path file) {
+        if (file.startsWith(WORKING_DIR)) {
+            return WORKING_DIR.relativize(file).toString();
+        }
+
         int nameCount = file.getNameCount();
         return file.getName(nameCount - 2) + File.separator + file.getName(nameCount - 1);
     }
 
     @Override
     public void run() {
+        // the directory tree is registered and its files are stored in the background, events are handled meanwhile
+        try {
+            new Backfill(this, root, true, false).withGauges().start(() -> trace = true);
+        } catch (IOException e) {
+            logger.error("Could not register directory: " + root, e);
+            return;
+        }
+
         try {
             processEvents();
         } catch (IOException e) {
@@ -188,42 +663,173 @@ abstract class BaseRunnable implements Runnable {
         }
     }
 
-    private Path storeFile(Path file) throws IOException {
-        //storing the file
-        String fileName = file.getFileName().toString();
-        File destFile = new File(processedFolderDir, fileName);
-        if (destFile.exists()) {
-            boolean sameContent = FileUtils.contentEquals(file.toFile(), destFile);
-            if (sameContent) {
+    /**
+     * Moves the file into the processed folder and journals it, public for the benchmarks
+     *
+     * @return where it's stored, null if its content was stored before
+     */
+    public Path storeFile(Path file) throws IOException {
+        if (Files.notExists(file)) {
+            throw new NoSuchFileException(file.toString());
+        }
+
+        // hashed outside the lock, this is the only full read of the file before parsing, keys and SHA-256 at once
+        ContentHashIndex.ContentHash hash = ContentHashIndex.hash(file);
+
+        // only choosing the destination is synchronized, as the watcher and the backfill may store files with the
+        // same name at the same time. The move is not, a copy to another file system doesn't hold up other stores.
+        Path dest;
+        String id;
+        synchronized (this) {
+            String fileName = file.getFileName().toString();
+            String existingId = contentHashIndex.lookup(hash);
+            if (existingId != null) {
                 Files.delete(file);
-                return null;
-            } else {
-                String fileNameWithOutExt = FilenameUtils.removeExtension(fileName);
-                String ext = FilenameUtils.getExtension(fileName);
-                if (!TextUtils.isEmpty(ext)) {
-                    ext = "." + ext;
+                if (ALIAS_DUPLICATES) {
+                    indexAlias(getFolderName() + File.separator + fileName, existingId);
                 }
-                fileName = fileNameWithOutExt + "_" + UUID.randomUUID() + ext;
-                destFile = new File(processedFolderDir, fileName);
+                return null;
             }
+
+            // journaled before the move so a crash right after it can't lose the file, which also keeps the
+            // destination from being chosen again until the move is done
+            dest = processedStore.destination(file, hash, this::isTaken);
+            id = getFileRelativeName(dest);
+            journal.enqueue(dest, fileName);
+            // persisted once the file is indexed, a failed file doesn't hide the same content stored again
+            contentHashIndex.add(hash, id);
         }
 
-        Path dest = destFile.toPath();
-        Files.move(file, destFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        try {
+            ProcessedStore.move(file, dest);
+        } catch (IOException e) {
+            // a duplicate dropped meanwhile has the content of the file, which stays to be stored again
+            contentHashIndex.remove(hash, id);
+            journal.ack(dest);
+            throw e;
+        }
 
+        storedHashes.put(dest, hash);
         return dest;
     }
 
-    private void storeFileAndQueueFilePath(Path filePath) {
+    /**
+     * Whether a file is stored at the path or being moved there
+     */
+    private boolean isTaken(Path dest) {
+        return journal.contains(dest) || Files.exists(dest);
+    }
+
+    /**
+     * Indexes a document pointing a duplicate's name to the document its content was first indexed as
+     */
+    private void indexAlias(String id, String existingId) {
+        try {
+            ESClient.INSTANCE.index(getFolderName(), id, jsonBuilder()
+                    .startObject()
+                    .field("duplicateOf", existingId)
+                    .endObject(), new IndexListener() {
+                @Override
+                public void onIndexed(String index, String id) {
+                    if (logger.isInfoEnabled()) {
+                        logger.info("Indexed duplicate: " + id + " of " + existingId);
+                    }
+                }
+
+                @Override
+                public void onFailure(String index, String id, Throwable cause) {
+                    logger.error("Could not index duplicate : " + id, cause);
+                }
+            });
+        } catch (IOException e) {
+            logger.error("Could not index duplicate : " + id, e);
+        }
+    }
+
+    /**
+     * Hands the file to the stability tracker which stores it once it's completely written
+     *
+     * @return false if the file is ignored or the thread was interrupted
+     */
+    private boolean observe(Path file) {
+        if (stabilityTracker.isIgnored(file)) {
+            return false;
+        }
+
         try {
+            stabilityTracker.observe(file);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while waiting to track the file: " + file);
+            return false;
+        }
+    }
+
+    /**
+     * @return false if the file couldn't be stored and is still there
+     */
+    private boolean storeFileAndQueueFilePath(Path filePath, long observedAt) {
+        storingFiles.add(filePath);
+        try {
+            long start = System.nanoTime();
             Path path = storeFile(filePath);
+            storeLatency.recordSince(start);
             if (path != null) {
-                filePathsQueue.offer(path);
+                queueFilePath(path);
+                watchLatency.recordSince(observedAt);
             } else {
-                logger.warn("Do not store, the path is null. This usually happens when the file is already processed once");
+                logger.warn("Do not store, the path is null. This happens when a file with the same content is already processed");
             }
+        } catch (NoSuchFileException e) {
+            // listed by a scan and reported by the watcher, the other one already stored it
+            logger.debug("File is already stored: " + filePath);
         } catch (IOException e) {
             logger.error("Couldn't store the file: " + filePath);
+            return false;
+        } finally {
+            storingFiles.remove(filePath);
+        }
+        return true;
+    }
+
+    /**
+     * Stores and queues a file found by a backfill, blocking while the lane is full. A file written to within
+     * the quiet period is left to the stability tracker.
+     *
+     * @return false if the file is still there, e.g. as it's being written
+     */
+    boolean backfillFile(Path file) {
+        if (stabilityTracker.isIgnored(file)) {
+            return true;
+        }
+
+        try {
+            if (!stabilityTracker.isQuiet(file)) {
+                observe(file);
+                return false;
+            }
+        } catch (NoSuchFileException e) {
+            // stored after a watcher event
+            return true;
+        } catch (IOException e) {
+            logger.error("Couldn't read the file: " + file, e);
+            return false;
+        }
+        return storeFileAndQueueFilePath(file, System.nanoTime());
+    }
+
+    private void queueFilePath(Path path) {
+        try {
+            // a full lane blocks the watcher and the initial walk until the workers catch up
+            if (!IndexingScheduler.INSTANCE.submit(lane, path, Files.size(path))) {
+                rejectedSubmissions.incrementAndGet();
+            }
+        } catch (IOException e) {
+            logger.error("Couldn't queue the file: " + path);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while queueing the file: " + path + ", it stays in the journal");
         }
     }
 }
@@ -0,0 +1,129 @@
+package MonitoringThreads;
+
+import ESTransport.ESClient;
+import ESTransport.IndexListener;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The child documents of a parse handed to the bulk indexer as it goes, like the chunks of a file or the entries
+ * of an archive. If the parse fails they're deleted again by their ids, along with the children of nested
+ * parses, e.g. the chunks of the archive's entries. The delete waits until every child handed over was
+ * acknowledged, so none is indexed after it, and children handed over later are dropped. Children kept in the
+ * dead-letter queue come back when it's replayed.
+ */
+class ChildDocuments implements IndexListener {
+    private final static Logger logger = LogManager.getLogger(ChildDocuments.class);
+
+    // ids per bulk request deleting them
+    private final static int DELETE_BATCH = 1000;
+
+    private final ChildDocuments parent;
+    // guarded by this, ids of the children indexed per index
+    private final Map<String, List<String>> indexed = new HashMap<>();
+    private final List<ChildDocuments> nested = new ArrayList<>();
+    private int inFlight = 0;
+    private boolean discarded = false;
+
+    ChildDocuments() {
+        this(null);
+    }
+
+    /**
+     * The children of a nested parse, discarded along with the parent's
+     */
+    ChildDocuments(ChildDocuments parent) {
+        this.parent = parent;
+        if (parent != null) {
+            synchronized (parent) {
+                parent.nested.add(this);
+            }
+        }
+    }
+
+    /**
+     * Called before a child is handed to the bulk indexer with this listener
+     *
+     * @return false if the parse was discarded already, the child is to be dropped
+     */
+    synchronized boolean handedOver() {
+        if (isDiscarded()) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    private boolean isDiscarded() {
+        synchronized (this) {
+            if (discarded) {
+                return true;
+            }
+        }
+        return parent != null && parent.isDiscarded();
+    }
+
+    @Override
+    public void onIndexed(String index, String id) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Indexed: " + id + ", index=" + index);
+        }
+
+        synchronized (this) {
+            indexed.computeIfAbsent(index, i -> new ArrayList<>()).add(id);
+            acknowledged();
+        }
+    }
+
+    @Override
+    public void onFailure(String index, String id, Throwable cause) {
+        logger.error("Could not index : " + id, cause);
+
+        synchronized (this) {
+            acknowledged();
+        }
+    }
+
+    /**
+     * Deletes the children indexed so far, and the ones in flight once they're acknowledged
+     */
+    void discard() {
+        List<ChildDocuments> nestedParses;
+        synchronized (this) {
+            discarded = true;
+            if (inFlight == 0) {
+                delete();
+            }
+            nestedParses = new ArrayList<>(nested);
+        }
+
+        for (ChildDocuments children : nestedParses) {
+            children.discard();
+        }
+    }
+
+    private void acknowledged() {
+        inFlight--;
+        if (discarded && inFlight == 0) {
+            delete();
+        }
+    }
+
+    private void delete() {
+        for (Map.Entry<String, List<String>> entry : indexed.entrySet()) {
+            List<String> ids = entry.getValue();
+            for (int from = 0; from < ids.size(); from += DELETE_BATCH) {
+                ESClient.INSTANCE.delete(entry.getKey(), new ArrayList<>(ids.subList(from, Math.min(ids.size(), from + DELETE_BATCH))));
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Deleting " + ids.size() + " child documents from index " + entry.getKey());
+            }
+        }
+        indexed.clear();
+    }
+}
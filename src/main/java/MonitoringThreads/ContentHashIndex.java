@@ -0,0 +1,272 @@
+package MonitoringThreads;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent index from file content to the ES id of the document it was first stored as.
+ *
+ * Entries are looked up by a cheap 64 bit key (CRC32 and Adler32 of the content) and confirmed by the SHA-256,
+ * {@link #hash} computes all three in a single read of the file. An entry is kept in memory while its document is
+ * indexed and appended to the index file once it's indexed, the index file is loaded again on startup. Removing a
+ * persisted entry appends a removal record. Record layout: type (1 byte), key (8 bytes), SHA-256 (32 bytes),
+ * id length (2 bytes), UTF-8 id.
+ */
+class ContentHashIndex {
+    private final static Logger logger = LogManager.getLogger(ContentHashIndex.class);
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+    private final static byte ADD = 1;
+    private final static byte REMOVE = 2;
+
+    private final Path file;
+    // guarded by this
+    private final Map<Long, Entry> entries = new HashMap<>();
+    private final DataOutputStream out;
+
+    ContentHashIndex(Path file) throws IOException {
+        this.file = file;
+
+        if (Files.exists(file)) {
+            load();
+        }
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile(), true)));
+    }
+
+    /**
+     * Reads the file once and computes the fast key and the SHA-256 of its content
+     */
+    static ContentHash hash(Path path) throws IOException {
+        CRC32 crc = new CRC32();
+        Adler32 adler = new Adler32();
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                adler.update(buffer, 0, read);
+                sha.update(buffer, 0, read);
+            }
+        }
+
+        return new ContentHash(crc.getValue() << 32 | adler.getValue(), sha.digest());
+    }
+
+    /**
+     * Finds the content by its key and confirms a match by the SHA-256, neither file is read again
+     *
+     * @return the id the content was stored as, or null if it's seen for the first time
+     */
+    synchronized String lookup(ContentHash hash) {
+        for (Entry entry = entries.get(hash.key); entry != null; entry = entry.next) {
+            if (Arrays.equals(entry.strong, hash.strong)) {
+                return new String(entry.id, StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds the content stored as the given id, it's only kept in memory until {@link #persist}
+     */
+    synchronized void add(ContentHash hash, String id) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        // e.g. a file requeued from the journal after its entry was persisted
+        if (find(hash.key, idBytes) == null) {
+            put(hash.key, hash.strong, idBytes);
+        }
+    }
+
+    /**
+     * Appends the entry to the index file, once the document of the content was indexed
+     */
+    synchronized void persist(ContentHash hash, String id) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        Entry entry = find(hash.key, idBytes);
+        if (entry == null) {
+            entry = put(hash.key, hash.strong, idBytes);
+        } else if (entry.persisted) {
+            return;
+        }
+
+        if (append(ADD, hash.key, hash.strong, idBytes, id)) {
+            entry.persisted = true;
+        }
+    }
+
+    /**
+     * Forgets the entry, its content failed to be indexed, so the same content stored again is processed again
+     */
+    synchronized void remove(ContentHash hash, String id) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        Entry removed = unlink(hash.key, idBytes);
+        if (removed != null && removed.persisted) {
+            append(REMOVE, hash.key, hash.strong, idBytes, id);
+        }
+    }
+
+    private boolean append(byte type, long key, byte[] strong, byte[] idBytes, String id) {
+        try {
+            out.writeByte(type);
+            out.writeLong(key);
+            out.write(strong);
+            out.writeShort(idBytes.length);
+            out.write(idBytes);
+            out.flush();
+            return true;
+        } catch (IOException e) {
+            logger.error("Could not persist content hash of: " + id, e);
+            return false;
+        }
+    }
+
+    private Entry put(long key, byte[] strong, byte[] id) {
+        Entry entry = new Entry(strong, id, entries.get(key));
+        entries.put(key, entry);
+        return entry;
+    }
+
+    private Entry find(long key, byte[] id) {
+        for (Entry entry = entries.get(key); entry != null; entry = entry.next) {
+            if (Arrays.equals(entry.id, id)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the entry of the id from the chain of the key
+     *
+     * @return the removed entry, null if there was none
+     */
+    private Entry unlink(long key, byte[] id) {
+        Entry removed = null;
+        Entry previous = null;
+        for (Entry entry = entries.get(key); entry != null; entry = entry.next) {
+            if (removed == null && Arrays.equals(entry.id, id)) {
+                removed = entry;
+                if (previous == null) {
+                    if (entry.next == null) {
+                        entries.remove(key);
+                    } else {
+                        entries.put(key, entry.next);
+                    }
+                } else {
+                    previous.next = entry.next;
+                }
+            }
+            previous = entry;
+        }
+        return removed;
+    }
+
+    private void load() throws IOException {
+        long valid = 0;
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                byte type = in.readByte();
+                long key = in.readLong();
+                byte[] strong = new byte[32];
+                in.readFully(strong);
+                byte[] id = new byte[in.readUnsignedShort()];
+                in.readFully(id);
+                if (type == ADD) {
+                    put(key, strong, id).persisted = true;
+                    count++;
+                } else if (type == REMOVE && unlink(key, id) != null) {
+                    count--;
+                } else if (type != REMOVE) {
+                    logger.warn("Unknown record type " + type + " in " + file + ", the rest is dropped");
+                    break;
+                }
+
+                valid += 1 + 8 + strong.length + 2 + id.length;
+            }
+        } catch (EOFException e) {
+            // end of the index
+        }
+
+        // drop a partially written last record, otherwise appended records would be misread
+        if (Files.size(file) > valid) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+
+        logger.info("Loaded " + count + " content hashes from " + file);
+    }
+
+    static class ContentHash {
+        private final long key;
+        private final byte[] strong;
+
+        // package-private for the tests, which need two contents with the same key
+        ContentHash(long key, byte[] strong) {
+            this.key = key;
+            this.strong = strong;
+        }
+
+        /**
+         * Fast key of the content in lower case hex
+         */
+        String keyToHex() {
+            return String.format("%016x", key);
+        }
+
+        /**
+         * SHA-256 of the content in lower case hex
+         */
+        String toHex() {
+            StringBuilder hex = new StringBuilder(strong.length * 2);
+            for (byte b : strong) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        }
+    }
+
+    private static class Entry {
+        private final byte[] strong;
+        private final byte[] id;
+        // entries with the same key
+        private Entry next;
+        // appended to the index file
+        private boolean persisted;
+
+        private Entry(byte[] strong, byte[] id, Entry next) {
+            this.strong = strong;
+            this.id = id;
+            this.next = next;
+        }
+    }
+}
@@ -1,32 +1,49 @@
 package MonitoringThreads;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.james.mime4j.MimeException;
-import org.apache.james.mime4j.codec.DecodeMonitor;
-import org.apache.james.mime4j.message.DefaultBodyDescriptorBuilder;
 import org.apache.james.mime4j.parser.ContentHandler;
 import org.apache.james.mime4j.parser.MimeStreamParser;
-import org.apache.james.mime4j.stream.BodyDescriptorBuilder;
-import org.apache.james.mime4j.stream.MimeConfig;
 import org.apache.log4j.LogManager;
 import org.apache.log4j.Logger;
-import org.elasticsearch.action.index.IndexResponse;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.sax.BodyContentHandler;
+import org.xml.sax.SAXException;
+import parser.AttachmentSpooler;
+import parser.ChunkingContentHandler;
+import parser.FilesParser;
+import parser.JsonContentHandler;
+import parser.ParserPool;
 import tech.blueglacier.email.Attachment;
 import tech.blueglacier.email.Email;
 import tech.blueglacier.parser.CustomContentHandler;
 
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
-
-import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import java.util.concurrent.RecursiveAction;
 
 public class EmailRunnable extends BaseRunnable {
     private final static Logger logger = LogManager.getLogger(EmailRunnable.class);
     private final static String EMAIL_DIR = "emails";
 
+    // index the content of attachments as documents of their own
+    private final static boolean INDEX_ATTACHMENTS = Boolean.parseBoolean(System.getProperty("emirates.email.attachments", "true"));
+    private final static long MAX_ATTACHMENT_SIZE = Long.getLong("emirates.email.attachment.max.mb", 100L) * 1024 * 1024;
+    // attachments whose detected type starts with one of these aren't extracted
+    private final static String[] SKIPPED_TYPES = System.getProperty("emirates.email.attachment.skip", "image/,audio/,video/").split(",");
+    // attachments bigger than this wait for their parse in a temporary file
+    private final static int SPOOL_MEMORY_LIMIT = 1024 * 1024;
+
     /**
      * Creates a WatchService and registers the given directory
      *
@@ -37,39 +54,55 @@ public class EmailRunnable extends BaseRunnable {
     }
 
     @Override
-    void indexFileContent(Path fileToIndex) {
-        ContentHandler contentHandler = new CustomContentHandler();
+    public void indexFileContent(Path fileToIndex) {
+        indexEmail(this, fileToIndex);
+    }
 
-        MimeConfig mime4jParserConfig = MimeConfig.DEFAULT;
-        BodyDescriptorBuilder bodyDescriptorBuilder = new DefaultBodyDescriptorBuilder();
-        MimeStreamParser mime4jParser = new MimeStreamParser(mime4jParserConfig,  DecodeMonitor.SILENT,bodyDescriptorBuilder);
-        mime4jParser.setContentDecoding(true);
-        mime4jParser.setContentHandler(contentHandler);
+    /**
+     * Extracts the email and indexes it into the emails index, on behalf of the runnable which stored it
+     */
+    static void indexEmail(BaseRunnable host, Path fileToIndex) {
+        ContentHandler contentHandler = new CustomContentHandler();
+        AttachmentSpooler spooler = null;
+        if (INDEX_ATTACHMENTS) {
+            spooler = new AttachmentSpooler(contentHandler, SPOOL_MEMORY_LIMIT, MAX_ATTACHMENT_SIZE);
+        }
+        MimeStreamParser mime4jParser = ParserPool.INSTANCE.borrowMimeParser(spooler != null ? spooler : contentHandler);
 
-        try {
-            mime4jParser.parse(new FileInputStream(fileToIndex.toString()));
+        try (InputStream stream = new FileInputStream(fileToIndex.toString())) {
+            mime4jParser.parse(stream);
         } catch (MimeException | IOException e) {
             logger.error("Could not extract content from file: " + fileToIndex, e);
 
-            storeFailedFile(fileToIndex);
+            if (spooler != null) {
+                for (AttachmentSpooler.SpooledAttachment attachment : spooler.getAttachments()) {
+                    closeInput(attachment);
+                }
+            }
+            host.storeFailedFile(fileToIndex, e.toString());
             return;
+        } finally {
+            ParserPool.INSTANCE.returnMimeParser(mime4jParser);
         }
 
-        Email email = ((CustomContentHandler) contentHandler).getEmail();
-
-
-        Attachment plainText = email.getPlainTextEmailBody();
-        String plainTextString = email.toString();
-        if (plainText != null) {
-            StringWriter plainTextWriter = new StringWriter();
-            try {
-                IOUtils.copy(plainText.getIs(), plainTextWriter, "UTF-8");
-                plainTextString = plainTextWriter.toString();
-            } catch (IOException e) {
-                logger.warn("Couldn't extract plainText from email");
+        // the attachments are parsed while the email document is built
+        List<AttachmentTask> tasks = new ArrayList<>();
+        if (spooler != null) {
+            String emailId = host.getFileRelativeName(fileToIndex);
+            List<AttachmentSpooler.SpooledAttachment> spooled = spooler.getAttachments();
+            for (int i = 0; i < spooled.size(); i++) {
+                AttachmentTask task = new AttachmentTask(host, emailId, i, spooled.get(i));
+                tasks.add(task);
+                forkChild(task);
+            }
+            if (spooler.getSkipped() > 0) {
+                logger.warn(spooler.getSkipped() + " attachments of " + fileToIndex + " are too big to be extracted");
             }
         }
 
+        Email email = ((CustomContentHandler) contentHandler).getEmail();
+
+
         String to = email.getToEmailHeaderValue();
         String cc = email.getCCEmailHeaderValue();
         String from = email.getFromEmailHeaderValue();
@@ -86,22 +119,136 @@ public class EmailRunnable extends BaseRunnable {
         }
         String attachmentNames = stringBuilder.toString();
 
-        try {
-            IndexResponse response = ESTransport.ESClient.INSTANCE.getClient().prepareIndex(EMAIL_DIR, "_doc", getFileRelativeName(fileToIndex))
-                    .setSource(jsonBuilder()
-                            .startObject()
-                            .field("to", to)
-                            .field("cc", cc)
-                            .field("from", from)
-                            .field("plainText", plainTextString)
-                            .field("attachments", attachmentNames)
-                            .endObject()).get();
-
-            if (logger.isInfoEnabled()) {
-                logger.info("Indexed file: " + getFileRelativeName(fileToIndex) + ", index ID=" + response.getId());
+        JsonContentHandler document = ParserPool.INSTANCE.getJsonContentHandler()
+                .field("to", to)
+                .field("cc", cc)
+                .field("from", from);
+
+        // the plain text body is copied into the document source in chunks
+        Attachment plainText = email.getPlainTextEmailBody();
+        if (plainText != null) {
+            try (Reader reader = new InputStreamReader(plainText.getIs(), StandardCharsets.UTF_8)) {
+                document.field("plainText", reader);
+            } catch (IOException e) {
+                logger.warn("Couldn't extract plainText from email");
+                document.endStreamedField();
             }
+        } else {
+            document.field("plainText", email.toString());
+        }
+
+        for (AttachmentTask task : tasks) {
+            task.join();
+        }
+
+        host.index(EMAIL_DIR, fileToIndex, document
+                .field("attachments", attachmentNames));
+    }
+
+    /**
+     * Parses and indexes one attachment as {"email": email id, "name": name, "contentType": detected type,
+     * "size": size, "content": text, "metadata": metadata} with id &lt;email id&gt;!/&lt;position&gt;/&lt;name&gt;
+     */
+    private static class AttachmentTask extends RecursiveAction {
+        private final BaseRunnable host;
+        // the attachment is parsed on behalf of the extraction of the email, which forks the task
+        private final ParseSandbox.Extraction extraction = ParseSandbox.INSTANCE.current();
+        private final String emailId;
+        private final int position;
+        private final AttachmentSpooler.SpooledAttachment attachment;
+
+        AttachmentTask(BaseRunnable host, String emailId, int position, AttachmentSpooler.SpooledAttachment attachment) {
+            this.host = host;
+            this.emailId = emailId;
+            this.position = position;
+            this.attachment = attachment;
+        }
+
+        @Override
+        protected void compute() {
+            if (!ParseSandbox.INSTANCE.runChild(extraction, this::parse)) {
+                closeInput(attachment);
+            }
+        }
+
+        private void parse() {
+            String name = attachment.name != null ? attachment.name : "attachment";
+            String id = emailId + "!/" + position + "/" + name;
+            FilesParser parser = ParserPool.INSTANCE.getParser(AutoDetectParser.class);
+            Metadata metadata = new Metadata();
+            metadata.set(Metadata.RESOURCE_NAME_KEY, name);
+
+            try (InputStream stream = attachment.input.open()) {
+                MediaType type = ParserPool.INSTANCE.detect(stream, metadata);
+                if (isSkipped(type)) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Skipped attachment: " + id + ", type=" + type);
+                    }
+                    return;
+                }
+
+                JsonContentHandler document = ParserPool.INSTANCE.getJsonContentHandler()
+                        .field("email", emailId)
+                        .field("name", name)
+                        .field("contentType", type.toString())
+                        .field("size", attachment.input.size());
+                ChunkingContentHandler chunks = null;
+                org.xml.sax.ContentHandler contentHandler;
+                if (CHUNK_SIZE > 0) {
+                    chunks = host.newChunkingHandler(EMAIL_DIR, id);
+                    contentHandler = new BodyContentHandler(chunks);
+                } else {
+                    contentHandler = new BodyContentHandler(document.startStreamedField("content"));
+                }
+
+                ParseContext context = ParserPool.INSTANCE.borrowContext(parser);
+                try {
+                    parser.parse(stream, contentHandler, metadata, context);
+                } catch (IOException | TikaException | SAXException | RuntimeException e) {
+                    // a broken attachment doesn't fail the email
+                    logger.warn("Could not extract content from attachment: " + id, e);
+
+                    document.bytes();
+                    if (chunks != null) {
+                        // the chunks indexed so far are deleted again
+                        chunks.discard();
+                    }
+                    return;
+                } finally {
+                    ParserPool.INSTANCE.returnContext(parser, context);
+                }
+
+                if (chunks != null) {
+                    document.field("chunks", chunks.finish());
+                }
+
+                host.indexChild(EMAIL_DIR, id, document
+                        .field("metadata", metadata.toString())
+                        .bytes());
+            } catch (IOException e) {
+                logger.warn("Could not read attachment: " + id, e);
+            } finally {
+                closeInput(attachment);
+            }
+        }
+    }
+
+    private static boolean isSkipped(MediaType type) {
+        String name = type.toString();
+        for (String skipped : SKIPPED_TYPES) {
+            String prefix = skipped.trim();
+            if (!prefix.isEmpty() && name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void closeInput(AttachmentSpooler.SpooledAttachment attachment) {
+        try {
+            attachment.input.close();
         } catch (IOException e) {
-            logger.error("Could not index archive file : " + getFileRelativeName(fileToIndex), e);
+            logger.warn("Could not delete the copy of attachment: " + attachment.name, e);
         }
     }
 
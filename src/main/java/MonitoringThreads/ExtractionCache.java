@@ -0,0 +1,205 @@
+package MonitoringThreads;
+
+import ESTransport.ESClient;
+import ESTransport.IndexListener;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * On-disk cache of the documents extracted from each file, so they can be indexed again without parsing the file,
+ * e.g. after a mapping change or into a new cluster.
+ *
+ * Each file's documents, its own and those derived from it like chunks, archive entries and attachments, are kept
+ * gzipped in &lt;cache dir&gt;/ab/&lt;sha256 of the content&gt;.gz. An entry is written to a temporary file while
+ * the file is extracted and moved into place once its own document is handed to the bulk indexer, so only
+ * complete extractions are cached.
+ *
+ * Record layout: index, id and source, each as length (4 bytes) and bytes.
+ */
+public class ExtractionCache {
+    private final static Logger logger = LogManager.getLogger(ExtractionCache.class);
+
+    // documents handed to the bulk indexer are also written to the cache
+    final static boolean ENABLED = Boolean.getBoolean("emirates.cache");
+
+    public static final ExtractionCache INSTANCE = new ExtractionCache(Paths.get(
+            System.getProperty("emirates.cache.dir", Paths.get(System.getProperty("user.dir"), ".extracted").toString())));
+
+    private final static String SUFFIX = ".gz";
+    private final static String TEMP_SUFFIX = ".tmp";
+
+    private final Path dir;
+    private final AtomicLong tempCount = new AtomicLong();
+
+    private ExtractionCache(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Starts the entry of a file's content, a previous entry for the same content is replaced once it's committed
+     */
+    Entry open(ContentHashIndex.ContentHash hash) throws IOException {
+        String hex = hash.toHex();
+        Path target = dir.resolve(hex.substring(0, 2)).resolve(hex + SUFFIX);
+        Files.createDirectories(target.getParent());
+
+        Path temp = target.resolveSibling(hex + SUFFIX + "." + tempCount.incrementAndGet() + TEMP_SUFFIX);
+        return new Entry(target, temp);
+    }
+
+    /**
+     * The documents extracted from one file, written by the extraction and its child tasks
+     */
+    static class Entry {
+        private final Path target;
+        private final Path temp;
+        private final DataOutputStream out;
+        private boolean closed = false;
+
+        private Entry(Path target, Path temp) throws IOException {
+            this.target = target;
+            this.temp = temp;
+            this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp))));
+        }
+
+        synchronized void add(String index, String id, BytesReference source) {
+            if (closed) {
+                return;
+            }
+
+            try {
+                writeField(index.getBytes(StandardCharsets.UTF_8));
+                writeField(id.getBytes(StandardCharsets.UTF_8));
+                out.writeInt(source.length());
+                source.writeTo(out);
+            } catch (IOException e) {
+                logger.error("Could not cache document: " + id, e);
+                abort();
+            }
+        }
+
+        private void writeField(byte[] bytes) throws IOException {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        /**
+         * Adds the file's own document, the last one of the entry, and moves the entry into place
+         */
+        synchronized void commit(String index, String id, BytesReference source) {
+            add(index, id, source);
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            try {
+                out.close();
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                logger.error("Could not cache the documents of: " + id, e);
+                deleteTemp();
+            }
+        }
+
+        /**
+         * Drops the entry, e.g. as the file failed
+         */
+        synchronized void abort() {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+            try {
+                out.close();
+            } catch (IOException e) {
+                // deleted anyway
+            }
+            deleteTemp();
+        }
+
+        private void deleteTemp() {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException e) {
+                logger.warn("Could not delete temporary cache file: " + temp, e);
+            }
+        }
+    }
+
+    /**
+     * Hands all cached documents to the bulk indexer, the entries are read in parallel
+     *
+     * @return the number of documents handed over
+     */
+    public long replay(IndexListener listener) throws IOException {
+        if (Files.notExists(dir)) {
+            return 0;
+        }
+
+        List<Path> entries;
+        try (Stream<Path> files = Files.walk(dir)) {
+            entries = files.filter(file -> file.getFileName().toString().endsWith(SUFFIX)).collect(Collectors.toList());
+        }
+        logger.info("Replaying " + entries.size() + " cached extractions from " + dir);
+
+        AtomicLong documents = new AtomicLong();
+        entries.parallelStream().forEach(entry -> documents.addAndGet(replay(entry, listener)));
+        return documents.get();
+    }
+
+    private static long replay(Path entry, IndexListener listener) {
+        long documents = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(entry))))) {
+            while (true) {
+                String index;
+                String id;
+                byte[] source;
+                try {
+                    index = new String(readField(in), StandardCharsets.UTF_8);
+                    id = new String(readField(in), StandardCharsets.UTF_8);
+                    source = readField(in);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                ESClient.INSTANCE.index(index, id, new BytesArray(source), listener);
+                documents++;
+            }
+        } catch (IOException e) {
+            logger.error("Could not read cached extraction: " + entry, e);
+        }
+        return documents;
+    }
+
+    private static byte[] readField(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Corrupt cache entry, field length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
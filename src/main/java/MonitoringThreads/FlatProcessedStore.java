@@ -0,0 +1,35 @@
+package MonitoringThreads;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.http.util.TextUtils;
+
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+/**
+ * Stores every file directly in the processed folder under its own name, a name which is taken already gets
+ * a random suffix
+ */
+class FlatProcessedStore implements ProcessedStore {
+    private final Path folder;
+
+    FlatProcessedStore(Path folder) {
+        this.folder = folder;
+    }
+
+    @Override
+    public Path destination(Path file, ContentHashIndex.ContentHash hash, Predicate<Path> taken) {
+        String fileName = file.getFileName().toString();
+        Path dest = folder.resolve(fileName);
+        if (taken.test(dest)) {
+            String fileNameWithOutExt = FilenameUtils.removeExtension(fileName);
+            String ext = FilenameUtils.getExtension(fileName);
+            if (!TextUtils.isEmpty(ext)) {
+                ext = "." + ext;
+            }
+            dest = folder.resolve(fileNameWithOutExt + "_" + UUID.randomUUID() + ext);
+        }
+        return dest;
+    }
+}
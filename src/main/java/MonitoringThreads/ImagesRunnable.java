@@ -6,21 +6,19 @@ import org.apache.tika.exception.TikaException;
 import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.parser.ParseContext;
-import org.apache.tika.parser.Parser;
-import org.apache.tika.parser.jpeg.JpegParser;
 import org.apache.tika.sax.BodyContentHandler;
-import org.elasticsearch.action.index.IndexResponse;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
 import parser.FilesParser;
+import parser.ImageHeaderParser;
+import parser.JsonContentHandler;
+import parser.ParserPool;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
 
-import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
-
-//supports only jpeg
+// supports jpeg, png, tiff, webp and heic, only the metadata is read
 public class ImagesRunnable extends BaseRunnable implements Runnable {
     private final static Logger logger = LogManager.getLogger(ImagesRunnable.class);
     private final static String IMAGES_DIR = "images";
@@ -35,12 +33,20 @@ public class ImagesRunnable extends BaseRunnable implements Runnable {
     }
 
     @Override
-    void indexFileContent(Path fileToIndex) {
-        Parser parser = new FilesParser(new JpegParser());
-        ParseContext context = new ParseContext();
-        context.set(Parser.class, parser);
+    public void indexFileContent(Path fileToIndex) {
+        indexImage(this, fileToIndex);
+    }
 
-        ContentHandler contentHandler = new BodyContentHandler();
+    /**
+     * Extracts the image and indexes it into the images index, on behalf of the runnable which stored it
+     */
+    static void indexImage(BaseRunnable host, Path fileToIndex) {
+        FilesParser parser = ParserPool.INSTANCE.getIsolatedParser(ImageHeaderParser.class);
+        ParseContext context = ParserPool.INSTANCE.borrowContext(parser);
+
+        // the body text is written straight into the document source
+        JsonContentHandler document = ParserPool.INSTANCE.getJsonContentHandler().startStreamedField("content");
+        ContentHandler contentHandler = new BodyContentHandler(document);
         Metadata metadata = new Metadata();
 
         try(InputStream stream = TikaInputStream.get(fileToIndex)) {
@@ -48,24 +54,14 @@ public class ImagesRunnable extends BaseRunnable implements Runnable {
         } catch (IOException | TikaException | SAXException e) {
             logger.error("Could not extract content from file: " + fileToIndex, e);
 
-            storeFailedFile(fileToIndex);
+            host.storeFailedFile(fileToIndex, e.toString());
             return;
+        } finally {
+            ParserPool.INSTANCE.returnContext(parser, context);
         }
 
-        try {
-            IndexResponse response = ESTransport.ESClient.INSTANCE.getClient().prepareIndex(IMAGES_DIR, "_doc", getFileRelativeName(fileToIndex))
-                    .setSource(jsonBuilder()
-                            .startObject()
-                            .field("content", contentHandler.toString())
-                            .field("metadata", metadata.toString())
-                            .endObject()).get();
-
-            if (logger.isInfoEnabled()) {
-                logger.info("Indexed file: " + getFileRelativeName(fileToIndex) + ", index ID=" + response.getId());
-            }
-        } catch (IOException e) {
-            logger.error("Could not index archive file : " + getFileRelativeName(fileToIndex), e);
-        }
+        host.index(IMAGES_DIR, fileToIndex, document
+                .field("metadata", metadata.toString()));
     }
 
     @Override
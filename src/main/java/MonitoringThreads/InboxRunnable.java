@@ -0,0 +1,75 @@
+package MonitoringThreads;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.pkg.PackageParser;
+import org.apache.tika.parser.txt.TXTParser;
+import parser.ImageHeaderParser;
+import parser.ParserPool;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Watches a single inbox for files of any type. The type of each file is detected from its first bytes and the
+ * file is extracted and indexed like in the folder of that type, e.g. a zip file goes to the archive index.
+ */
+public class InboxRunnable extends BaseRunnable {
+    private final static Logger logger = LogManager.getLogger(InboxRunnable.class);
+    private final static String INBOX_DIR = "inbox";
+
+    private final static Set<MediaType> EMAIL_TYPES = Collections.singleton(MediaType.parse("message/rfc822"));
+    private final static Set<MediaType> ARCHIVE_TYPES = ParserPool.INSTANCE.getParser(PackageParser.class).getSupportedTypes(new ParseContext());
+    private final static Set<MediaType> IMAGE_TYPES = ParserPool.INSTANCE.getParser(ImageHeaderParser.class).getSupportedTypes(new ParseContext());
+    private final static Set<MediaType> TEXT_TYPES = ParserPool.INSTANCE.getParser(TXTParser.class).getSupportedTypes(new ParseContext());
+
+    /**
+     * Creates a WatchService and registers the given directory
+     *
+     * @param dir
+     */
+    public InboxRunnable(Path dir) throws IOException {
+        super(dir.resolve(INBOX_DIR));
+    }
+
+    @Override
+    public void indexFileContent(Path fileToIndex) {
+        MediaType type;
+        try {
+            type = ParserPool.INSTANCE.detect(fileToIndex);
+        } catch (IOException e) {
+            logger.error("Could not detect the type of file: " + fileToIndex, e);
+
+            storeFailedFile(fileToIndex, e.toString());
+            return;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Detected " + type + ": " + fileToIndex);
+        }
+
+        // emails are text too, so they're checked first
+        if (ParserPool.INSTANCE.isInstanceOf(type, EMAIL_TYPES)) {
+            EmailRunnable.indexEmail(this, fileToIndex);
+        } else if (ParserPool.INSTANCE.isInstanceOf(type, ARCHIVE_TYPES)) {
+            ArchiveRunnable.indexArchive(this, fileToIndex);
+        } else if (ParserPool.INSTANCE.isInstanceOf(type, IMAGE_TYPES)) {
+            ImagesRunnable.indexImage(this, fileToIndex);
+        } else if (ParserPool.INSTANCE.isInstanceOf(type, TEXT_TYPES)) {
+            TextRunnable.indexText(this, fileToIndex);
+        } else {
+            logger.error("Unsupported type " + type + " of file: " + fileToIndex);
+
+            storeFailedFile(fileToIndex, "Unsupported type " + type);
+        }
+    }
+
+    @Override
+    String getFolderName() {
+        return INBOX_DIR;
+    }
+}
@@ -0,0 +1,304 @@
+package MonitoringThreads;
+
+import metrics.LatencyHistogram;
+import metrics.Metrics;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Process-wide pool of extraction workers shared by all runnables.
+ *
+ * Every runnable gets a {@link Lane}. Workers pick the next lane by stride scheduling, so an idle file type
+ * lends its share to the busy ones and a flooded type can't starve the others beyond its weight. Inside a lane
+ * files are bucketed by size and the smallest non-empty bucket is served first, unless the oldest file of a
+ * bucket has waited longer than the starvation limit.
+ *
+ * With {@link VirtualThreads} a dispatcher starts a virtual thread for every file taken in that order instead, and
+ * the workers only bound the number of files being parsed at a time. Handing their documents over to ES, which
+ * may wait for it, isn't counted.
+ */
+class IndexingScheduler {
+    private final static Logger logger = LogManager.getLogger(IndexingScheduler.class);
+
+    static final IndexingScheduler INSTANCE = new IndexingScheduler(
+            Integer.getInteger("emirates.workers", Runtime.getRuntime().availableProcessors()),
+            Long.getLong("emirates.scheduler.starvation.ms", 30000L));
+
+    // upper bounds of the size buckets, larger files go to the last bucket
+    private final static long[] BUCKET_LIMITS = {64 * 1024, 1024 * 1024, 16 * 1024 * 1024};
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final List<Lane> lanes = new ArrayList<>();
+    private final long starvationNanos;
+    // files being parsed at a time, only limited with virtual threads
+    private final Semaphore extractions;
+    private int queued = 0;
+    // pass of the most recently served lane, lanes that become active again start from here
+    private double virtualTime = 0;
+
+    private IndexingScheduler(int workers, long starvationMillis) {
+        this.starvationNanos = TimeUnit.MILLISECONDS.toNanos(starvationMillis);
+
+        if (VirtualThreads.ENABLED) {
+            // fair, so the extractions start in the order the files were taken
+            this.extractions = new Semaphore(workers, true);
+            int maxFiles = Integer.getInteger("emirates.virtual.files", 10000);
+            Thread dispatcher = new Thread(() -> dispatch(maxFiles), "scheduler-dispatcher");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+            return;
+        }
+
+        this.extractions = null;
+        ExecutorService executorService = Executors.newFixedThreadPool(workers);
+        for (int i = 0; i < workers; i++) {
+            executorService.submit(this::work);
+        }
+
+        executorService.shutdown();
+    }
+
+    /**
+     * Creates the lane of the given runnable, weight and capacity are read from emirates.&lt;folder&gt;.weight
+     * and emirates.queue.capacity
+     */
+    Lane register(BaseRunnable runnable) {
+        String weight = System.getProperty("emirates." + runnable.getFolderName() + ".weight", "1");
+        Lane lane = new Lane(runnable, Double.parseDouble(weight), Integer.getInteger("emirates.queue.capacity", 1000));
+
+        lock.lock();
+        try {
+            lanes.add(lane);
+        } finally {
+            lock.unlock();
+        }
+
+        return lane;
+    }
+
+    /**
+     * Queues the file, blocks while the lane is full
+     *
+     * @return false if the caller had to wait for free space
+     */
+    boolean submit(Lane lane, Path path, long size) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            boolean waited = false;
+            while (lane.size >= lane.capacity) {
+                waited = true;
+                lane.notFull.await();
+            }
+
+            if (lane.size == 0) {
+                lane.pass = Math.max(lane.pass, virtualTime);
+            }
+
+            int bucket = bucket(size);
+            lane.buckets[bucket].add(new Task(lane, path, bucket, System.nanoTime()));
+            lane.size++;
+            queued++;
+            notEmpty.signal();
+
+            return !waited;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Task task;
+            try {
+                task = take();
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted while taking a path from queue");
+                return;
+            }
+
+            run(task);
+        }
+    }
+
+    /**
+     * Takes files as long as fewer than maxFiles are being processed and processes each on a virtual thread
+     */
+    private void dispatch(int maxFiles) {
+        Semaphore inFlight = new Semaphore(maxFiles);
+        ThreadFactory threads = VirtualThreads.factory("file");
+        while (true) {
+            Task task;
+            try {
+                inFlight.acquire();
+                task = take();
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted while taking a path from queue");
+                return;
+            }
+
+            threads.newThread(() -> {
+                try {
+                    run(task);
+                } finally {
+                    inFlight.release();
+                }
+            }).start();
+        }
+    }
+
+    /**
+     * Processes the file, an unexpected exception is logged and counted so it doesn't end the worker
+     */
+    private static void run(Task task) {
+        task.lane.queueWait.recordSince(task.enqueuedAt);
+        try {
+            task.lane.runnable.process(task.path);
+        } catch (RuntimeException e) {
+            task.lane.errors.increment();
+            logger.error("Unexpected error while processing " + task.path, e);
+        }
+    }
+
+    /**
+     * Called before a file is parsed, with virtual threads it waits until fewer than emirates.workers files are
+     */
+    void startExtraction() {
+        if (extractions != null) {
+            extractions.acquireUninterruptibly();
+        }
+    }
+
+    /**
+     * Called once per {@link #startExtraction} when the file is parsed, before its documents are handed over
+     */
+    void endExtraction() {
+        if (extractions != null) {
+            extractions.release();
+        }
+    }
+
+    private Task take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (queued == 0) {
+                notEmpty.await();
+            }
+
+            Lane next = null;
+            for (Lane lane : lanes) {
+                if (lane.size > 0 && (next == null || lane.pass < next.pass)) {
+                    next = lane;
+                }
+            }
+
+            Task task = next.poll(System.nanoTime());
+            next.size--;
+            queued--;
+            virtualTime = next.pass;
+            next.pass += 1 / next.weight;
+            next.notFull.signal();
+
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int bucket(long size) {
+        for (int i = 0; i < BUCKET_LIMITS.length; i++) {
+            if (size < BUCKET_LIMITS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_LIMITS.length;
+    }
+
+    /**
+     * Queued files of a single runnable, guarded by the scheduler lock
+     */
+    class Lane {
+        private final BaseRunnable runnable;
+        private final double weight;
+        private final int capacity;
+        private final Condition notFull = lock.newCondition();
+        private final ArrayDeque<Task>[] buckets;
+        // time from queueing to a worker taking the file
+        private final LatencyHistogram queueWait;
+        // files whose processing threw
+        private final LongAdder errors;
+        private int size = 0;
+        private double pass = 0;
+
+        @SuppressWarnings("unchecked")
+        private Lane(BaseRunnable runnable, double weight, int capacity) {
+            this.runnable = runnable;
+            this.weight = weight;
+            this.capacity = capacity;
+            this.queueWait = Metrics.INSTANCE.histogram(runnable.getFolderName() + ".queue");
+            this.errors = Metrics.INSTANCE.counter(runnable.getFolderName() + ".errors");
+            this.buckets = new ArrayDeque[BUCKET_LIMITS.length + 1];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new ArrayDeque<>();
+            }
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return size;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Task poll(long now) {
+            // starvation guard: the longest waiting head past the limit goes first
+            Task oldest = null;
+            for (ArrayDeque<Task> bucket : buckets) {
+                Task head = bucket.peek();
+                if (head != null && now - head.enqueuedAt > starvationNanos
+                        && (oldest == null || head.enqueuedAt < oldest.enqueuedAt)) {
+                    oldest = head;
+                }
+            }
+            if (oldest != null) {
+                return buckets[oldest.bucket].poll();
+            }
+
+            for (ArrayDeque<Task> bucket : buckets) {
+                if (!bucket.isEmpty()) {
+                    return bucket.poll();
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class Task {
+        private final Lane lane;
+        private final Path path;
+        private final int bucket;
+        private final long enqueuedAt;
+
+        private Task(Lane lane, Path path, int bucket, long enqueuedAt) {
+            this.lane = lane;
+            this.path = path;
+            this.bucket = bucket;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
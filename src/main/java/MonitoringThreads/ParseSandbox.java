@@ -0,0 +1,333 @@
+package MonitoringThreads;
+
+import metrics.Metrics;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the extraction of a file on a separate thread under a wall-clock timeout and, optionally, a budget of bytes
+ * that thread may allocate. When a file exceeds them it is given up on: the worker goes on with the next file while
+ * the extraction thread is interrupted and left to end on its own, whatever it indexes for the file afterwards is
+ * dropped. A thread which never ends keeps its CPU, forked parsers (emirates.parse.fork.jvms) isolate those.
+ *
+ * Archive entries, attachments and chunks are parsed by child tasks running on behalf of the file's extraction
+ * (see {@link #runChild}). Once the file is given up on, the children which didn't start yet are skipped and the
+ * documents of the others are dropped. The allocation budget only counts the extraction thread, the child
+ * documents of a file are limited by their total size instead, past it the file is given up on as well.
+ */
+class ParseSandbox {
+    private final static Logger logger = LogManager.getLogger(ParseSandbox.class);
+
+    static final ParseSandbox INSTANCE = new ParseSandbox();
+
+    private final static long TIMEOUT_MILLIS = Long.getLong("emirates.parse.timeout.ms", 600000L);
+    private final static long ALLOCATION_BUDGET = Long.getLong("emirates.parse.allocation.mb", 0L) * 1024 * 1024;
+    // total size of the child documents of a file
+    private final static long MAX_CHILD_BYTES = Long.getLong("emirates.parse.children.mb", 1024L) * 1024 * 1024;
+    // how often the allocation of a running extraction is checked
+    private final static long CHECK_INTERVAL_MILLIS = 100;
+
+    private final ThreadLocal<Extraction> current = new ThreadLocal<>();
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "parse-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    // starts a virtual thread per extraction, null if the executor is used
+    private final ThreadFactory virtualThreads;
+    // per thread allocation counters, a HotSpot extension
+    private final com.sun.management.ThreadMXBean threads;
+
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong budgetExceeded = new AtomicLong();
+    private final AtomicLong childrenExceeded = new AtomicLong();
+
+    /**
+     * The extraction of one file, handed to the child tasks it forks
+     */
+    static class Extraction {
+        final Path file;
+        // set once the file is indexed or failed, by the extraction or by the sandbox giving up on it
+        final AtomicBoolean settled = new AtomicBoolean();
+        final AtomicLong childBytes = new AtomicLong();
+        // whether the extraction still counts as parsing for the scheduler
+        final AtomicBoolean parsing = new AtomicBoolean(true);
+        volatile Thread thread;
+        // child tasks the extraction thread runs itself while joining them, only used by that thread
+        int inlineChildren = 0;
+        volatile long threadId = -1;
+        volatile long allocatedAtStart;
+        // why the file is given up on, nothing is indexed for it afterwards
+        volatile String cancelled;
+
+        Extraction(Path file) {
+            this.file = file;
+        }
+
+        /**
+         * Gives up on the file unless its result was handed over already
+         *
+         * @return false if it was settled or given up on before
+         */
+        synchronized boolean cancel(String reason) {
+            if (cancelled != null || settled.get()) {
+                return false;
+            }
+            cancelled = reason;
+            return true;
+        }
+    }
+
+    private ParseSandbox() {
+        com.sun.management.ThreadMXBean threads = null;
+        if (ALLOCATION_BUDGET > 0) {
+            if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+                threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+                threads.setThreadAllocatedMemoryEnabled(true);
+            } else {
+                logger.warn("This JVM doesn't count allocated bytes per thread, emirates.parse.allocation.mb is ignored");
+            }
+        }
+        this.threads = threads;
+        // allocated bytes aren't counted for virtual threads
+        this.virtualThreads = VirtualThreads.ENABLED && threads == null ? VirtualThreads.factory("parse") : null;
+
+        Metrics.INSTANCE.gauge("parse.timeouts", this::getTimeouts);
+        Metrics.INSTANCE.gauge("parse.budgetExceeded", this::getBudgetExceeded);
+        Metrics.INSTANCE.gauge("parse.childrenExceeded", this::getChildrenExceeded);
+    }
+
+    /**
+     * Runs the extraction of the file, on the calling thread if neither a timeout nor a budget is set. The caller
+     * started an extraction with the scheduler, it's ended once the file is parsed.
+     *
+     * @return why the file has to be stored as failed, null if the extraction handed over a result
+     */
+    String run(Path file, Runnable extraction) {
+        Extraction e = new Extraction(file);
+        try {
+            return run(e, extraction);
+        } finally {
+            parsed(e);
+        }
+    }
+
+    private String run(Extraction e, Runnable extraction) {
+        if (TIMEOUT_MILLIS <= 0 && threads == null) {
+            return extract(e, extraction);
+        }
+
+        FutureTask<String> future = new FutureTask<>(() -> {
+            e.threadId = Thread.currentThread().getId();
+            if (threads != null) {
+                e.allocatedAtStart = threads.getThreadAllocatedBytes(e.threadId);
+            }
+            return extract(e, extraction);
+        });
+        if (virtualThreads != null) {
+            virtualThreads.newThread(future).start();
+        } else {
+            executor.execute(future);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (true) {
+            long wait = CHECK_INTERVAL_MILLIS;
+            if (TIMEOUT_MILLIS > 0) {
+                wait = Math.min(wait, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()) + 1);
+            }
+
+            try {
+                return future.get(Math.max(wait, 1), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ignored) {
+                if (TIMEOUT_MILLIS > 0 && System.nanoTime() - deadline >= 0) {
+                    return giveUp(e, future, "Timed out after " + TIMEOUT_MILLIS + " ms", timeouts);
+                } else if (threads != null && e.threadId != -1
+                        && threads.getThreadAllocatedBytes(e.threadId) - e.allocatedAtStart > ALLOCATION_BUDGET) {
+                    return giveUp(e, future, "Allocated more than " + ALLOCATION_BUDGET / (1024 * 1024) + " MB", budgetExceeded);
+                } else if (e.cancelled != null) {
+                    return giveUp(e, future, e.cancelled, null);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return giveUp(e, future, "Interrupted", null);
+            } catch (ExecutionException ee) {
+                logger.error("Unexpected error while indexing file: " + e.file, ee.getCause());
+
+                return e.settled.compareAndSet(false, true) ? ee.getCause().toString() : null;
+            }
+        }
+    }
+
+    private String giveUp(Extraction e, Future<String> future, String reason, AtomicLong counter) {
+        if (!e.settled.compareAndSet(false, true)) {
+            // it handed its result over in the meantime
+            return null;
+        }
+        e.cancelled = reason;
+        future.cancel(true);
+        parsed(e);
+
+        if (counter != null) {
+            counter.incrementAndGet();
+        }
+        logger.error(reason + ", giving up on file: " + e.file);
+        return reason;
+    }
+
+    private String extract(Extraction e, Runnable extraction) {
+        current.set(e);
+        e.thread = Thread.currentThread();
+        try {
+            extraction.run();
+            // the children exceeded their limit, the sandbox may not have noticed yet
+            return e.cancelled != null && e.settled.compareAndSet(false, true) ? e.cancelled : null;
+        } catch (RuntimeException | OutOfMemoryError | StackOverflowError t) {
+            logger.error("Unexpected error while indexing file: " + e.file, t);
+
+            return e.settled.compareAndSet(false, true) ? t.toString() : null;
+        } finally {
+            current.remove();
+            parsed(e);
+        }
+    }
+
+    /**
+     * Ends the extraction with the scheduler, the first time only
+     */
+    private static void parsed(Extraction e) {
+        if (e.parsing.compareAndSet(true, false)) {
+            IndexingScheduler.INSTANCE.endExtraction();
+        }
+    }
+
+    /**
+     * Called before a document is handed over. If the extraction thread hands it over, the file is parsed.
+     */
+    private static void handingOver(Extraction e) {
+        if (e.thread == Thread.currentThread() && e.inlineChildren == 0) {
+            parsed(e);
+        }
+    }
+
+    /**
+     * Called before a result is handed over for the file. An extraction can hand over one result for its file,
+     * once the sandbox gave up on it none.
+     *
+     * @return whether the result may be handed over
+     */
+    boolean settle(Path file) {
+        Extraction e = current.get();
+        if (e == null || !e.file.equals(file)) {
+            return true;
+        }
+
+        handingOver(e);
+        return e.cancelled == null && e.settled.compareAndSet(false, true);
+    }
+
+    /**
+     * The extraction the calling thread runs or works for, null outside of the sandbox
+     */
+    Extraction current() {
+        return current.get();
+    }
+
+    /**
+     * Runs a task forked by an extraction, e.g. the parse of an archive entry, on behalf of that extraction.
+     * It's skipped if the file was given up on.
+     *
+     * @return false if it was skipped
+     */
+    boolean runChild(Extraction e, Runnable task) {
+        if (e != null && e.cancelled != null) {
+            return false;
+        }
+
+        // a child pool thread joining a task may run tasks of other files meanwhile
+        Extraction outer = current.get();
+        current.set(e);
+        boolean inline = e != null && e.thread == Thread.currentThread();
+        if (inline) {
+            e.inlineChildren++;
+        }
+        try {
+            task.run();
+            return true;
+        } finally {
+            if (inline) {
+                e.inlineChildren--;
+            }
+            current.set(outer);
+        }
+    }
+
+    /**
+     * Called before a child document of the file is handed over, it counts against the limit of the file
+     *
+     * @return whether the document may be handed over
+     */
+    boolean admitChild(int bytes) {
+        Extraction e = current.get();
+        if (e == null) {
+            return true;
+        }
+        if (e.cancelled != null) {
+            return false;
+        }
+        handingOver(e);
+
+        if (e.childBytes.addAndGet(bytes) > MAX_CHILD_BYTES) {
+            if (e.cancel("Child documents exceeded " + MAX_CHILD_BYTES / (1024 * 1024) + " MB")) {
+                childrenExceeded.incrementAndGet();
+                logger.error(e.cancelled + ", giving up on file: " + e.file);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether the file the calling thread works for was given up on
+     */
+    boolean isCancelled() {
+        Extraction e = current.get();
+        return e != null && e.cancelled != null;
+    }
+
+    /**
+     * Number of files given up on because they took too long
+     */
+    long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Number of files given up on because their extraction allocated too much
+     */
+    long getBudgetExceeded() {
+        return budgetExceeded.get();
+    }
+
+    /**
+     * Number of files given up on because their child documents were too large
+     */
+    long getChildrenExceeded() {
+        return childrenExceeded.get();
+    }
+}
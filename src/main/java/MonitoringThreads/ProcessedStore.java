@@ -0,0 +1,77 @@
+package MonitoringThreads;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Predicate;
+
+/**
+ * Layout of a processed folder. The folder is served by the HTTP server, the path of a stored file relative
+ * to the working directory is the ES id and download URL of its document.
+ */
+interface ProcessedStore {
+
+    /**
+     * Chooses where the file is stored, creating parent directories if needed
+     *
+     * @param taken whether a path is used already, by a stored file or one being moved there
+     */
+    Path destination(Path file, ContentHashIndex.ContentHash hash, Predicate<Path> taken) throws IOException;
+
+    /**
+     * Creates the store configured by emirates.store, "flat" or "sharded"
+     */
+    static ProcessedStore create(Path folder) {
+        String type = System.getProperty("emirates.store", "flat");
+        switch (type) {
+            case "flat":
+                return new FlatProcessedStore(folder);
+            case "sharded":
+                return new ShardedProcessedStore(folder);
+            default:
+                throw new IllegalArgumentException("Unknown processed store: " + type);
+        }
+    }
+
+    /**
+     * Renames the file. If it can't be renamed it's hard linked and unlinked, and if it can't be linked either,
+     * e.g. as the destination is on another file system, it's copied and deleted.
+     */
+    static void move(Path source, Path dest) throws IOException {
+        try {
+            Files.move(source, dest, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            try {
+                Files.createLink(dest, source);
+                Files.delete(source);
+                return;
+            } catch (FileAlreadyExistsException | NoSuchFileException linkFailure) {
+                throw linkFailure;
+            } catch (IOException | UnsupportedOperationException linkFailure) {
+                // no hard links across file systems or on this one
+            }
+
+            Path partial = dest.resolveSibling("." + dest.getFileName() + ".part");
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE,
+                         StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+                out.force(true);
+            }
+
+            // the copy only becomes visible once it's complete
+            Files.move(partial, dest, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(source);
+        }
+    }
+}
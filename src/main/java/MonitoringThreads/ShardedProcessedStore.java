@@ -0,0 +1,50 @@
+package MonitoringThreads;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.http.util.TextUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Predicate;
+
+/**
+ * Stores files by content, e.g. archive/3f/a2/3fa2...e1.zip. Two levels of 256 shard directories keep every
+ * directory small at millions of files, and the path of a content never changes, so neither does its ES id.
+ * Files are named by the fast key of their content, by its SHA-256 if another content has the same key, with a
+ * numbered suffix if that's taken too. The original name is journaled with the file and indexed as its name field.
+ */
+class ShardedProcessedStore implements ProcessedStore {
+    private final Path folder;
+
+    ShardedProcessedStore(Path folder) {
+        this.folder = folder;
+    }
+
+    @Override
+    public Path destination(Path file, ContentHashIndex.ContentHash hash, Predicate<Path> taken) throws IOException {
+        String ext = FilenameUtils.getExtension(file.getFileName().toString());
+        if (!TextUtils.isEmpty(ext)) {
+            ext = "." + ext;
+        }
+
+        Path dest = destination(hash.keyToHex(), ext);
+        if (!taken.test(dest)) {
+            return dest;
+        }
+
+        // another content with the same key, or this content stored before but not indexed, e.g. as it failed
+        String hex = hash.toHex();
+        dest = destination(hex, ext);
+        for (int i = 1; taken.test(dest); i++) {
+            dest = destination(hex + "_" + i, ext);
+        }
+        return dest;
+    }
+
+    private Path destination(String hex, String ext) throws IOException {
+        Path shard = folder.resolve(hex.substring(0, 2)).resolve(hex.substring(2, 4));
+        Files.createDirectories(shard);
+        return shard.resolve(hex + ext);
+    }
+}
@@ -0,0 +1,323 @@
+package MonitoringThreads;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Holds back files which are still being written. A file is released once neither the watcher reported it nor
+ * its size or modification time changed for the quiet period, files older than that are released right away.
+ *
+ * Tracked files sit in a hashed timer wheel ticked by a single thread, so a burst of modify events only updates
+ * a timestamp and costs no timer or thread per file. When too many files are tracked, {@link #observe} blocks.
+ * Files released by the wheel are stored on another thread, which may block on a full lane while the wheel keeps
+ * ticking. A file which couldn't be stored stays tracked and is tried again, waiting twice as long each time.
+ */
+class StabilityTracker {
+    private final static Logger logger = LogManager.getLogger(StabilityTracker.class);
+
+    private final static int WHEEL_SIZE = 512;
+    private final static long MAX_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("emirates.watch.retry.max.ms", 60000L));
+
+    /**
+     * Stores a file which stopped changing
+     */
+    interface Store {
+        /**
+         * @param observedAt the System.nanoTime() the file was first observed at
+         * @return false if the file couldn't be stored and should be tried again
+         */
+        boolean store(Path file, long observedAt);
+    }
+
+    private final Store onStable;
+    private final List<PathMatcher> ignored = new ArrayList<>();
+    private final long quietMillis;
+    private final long quietNanos;
+    private final long tickNanos;
+    private final Semaphore capacity;
+    private final LongSupplier clock;
+    // daemons, the runnables' threads keep the JVM alive while files are watched
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(daemon("stability-ticker"));
+    private final Executor storer;
+
+    // guarded by this
+    private final Map<Path, Entry> tracked = new HashMap<>();
+    private final List<Entry>[] wheel;
+    private long currentTick = 0;
+
+    StabilityTracker(Store onStable, String ignorePatterns, long quietMillis, long tickMillis, int maxTracked) {
+        this(onStable, ignorePatterns, quietMillis, tickMillis, maxTracked, System::nanoTime,
+                Executors.newSingleThreadExecutor(daemon("stability-storer")));
+
+        ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * For the tests, which read the time from the clock and call {@link #tick} themselves
+     */
+    @SuppressWarnings("unchecked")
+    StabilityTracker(Store onStable, String ignorePatterns, long quietMillis, long tickMillis, int maxTracked,
+                     LongSupplier clock, Executor storer) {
+        this.onStable = onStable;
+        this.quietMillis = quietMillis;
+        this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.capacity = new Semaphore(maxTracked);
+        this.clock = clock;
+        this.storer = storer;
+
+        for (String pattern : ignorePatterns.split(",")) {
+            if (!pattern.trim().isEmpty()) {
+                ignored.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern.trim()));
+            }
+        }
+
+        this.wheel = new List[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+    }
+
+    /**
+     * True if the file name matches one of the temporary file patterns
+     */
+    boolean isIgnored(Path file) {
+        Path name = file.getFileName();
+        for (PathMatcher matcher : ignored) {
+            if (matcher.matches(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether nothing wrote to the file for the quiet period
+     */
+    boolean isQuiet(Path file) throws IOException {
+        return System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis() > quietMillis;
+    }
+
+    /**
+     * Starts tracking the file, or restarts its quiet period if it is tracked already
+     */
+    void observe(Path file) throws InterruptedException {
+        if (isIgnored(file)) {
+            return;
+        }
+        long observedAt = clock.getAsLong();
+
+        synchronized (this) {
+            Entry entry = tracked.get(file);
+            if (entry != null) {
+                entry.lastEvent = clock.getAsLong();
+                return;
+            }
+        }
+
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            // moved away or deleted before we got to it
+            return;
+        }
+
+        // nothing wrote to it for the quiet period already, e.g. an existing file or an atomic rename
+        boolean quiet = System.currentTimeMillis() - attributes.lastModifiedTime().toMillis() > quietMillis;
+        if (quiet && onStable.store(file, observedAt)) {
+            return;
+        }
+
+        capacity.acquire();
+        synchronized (this) {
+            if (tracked.containsKey(file)) {
+                capacity.release();
+                return;
+            }
+
+            Entry entry = new Entry(file, attributes.size(), attributes.lastModifiedTime().toMillis(), observedAt);
+            tracked.put(file, entry);
+            if (quiet) {
+                retry(entry);
+            } else {
+                schedule(entry, quietNanos);
+            }
+        }
+    }
+
+    /**
+     * Number of files waiting for their writes to complete
+     */
+    synchronized int size() {
+        return tracked.size();
+    }
+
+    private void schedule(Entry entry, long delayNanos) {
+        long ticks = Math.max(1, (delayNanos + tickNanos - 1) / tickNanos);
+        entry.rounds = (ticks - 1) / WHEEL_SIZE;
+        wheel[(int) ((currentTick + ticks) % WHEEL_SIZE)].add(entry);
+    }
+
+    /**
+     * Advances the wheel by one tick and checks the files due
+     */
+    void tick() {
+        List<Entry> due = new ArrayList<>();
+        synchronized (this) {
+            currentTick++;
+            Iterator<Entry> slot = wheel[(int) (currentTick % WHEEL_SIZE)].iterator();
+            while (slot.hasNext()) {
+                Entry entry = slot.next();
+                if (entry.rounds > 0) {
+                    entry.rounds--;
+                } else {
+                    slot.remove();
+                    due.add(entry);
+                }
+            }
+        }
+
+        for (Entry entry : due) {
+            try {
+                check(entry);
+            } catch (RuntimeException e) {
+                logger.error("Unexpected error while checking file: " + entry.file, e);
+                forget(entry);
+            }
+        }
+    }
+
+    private void check(Entry entry) {
+        long now = clock.getAsLong();
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(entry.file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            forget(entry);
+            return;
+        } catch (IOException e) {
+            logger.warn("Could not check file: " + entry.file, e);
+            forget(entry);
+            return;
+        }
+
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+        synchronized (this) {
+            long sinceEvent = now - entry.lastEvent;
+            if (sinceEvent < quietNanos) {
+                entry.size = size;
+                entry.modified = modified;
+                schedule(entry, quietNanos - sinceEvent);
+                return;
+            }
+            if (size != entry.size || modified != entry.modified) {
+                entry.size = size;
+                entry.modified = modified;
+                schedule(entry, quietNanos);
+                return;
+            }
+        }
+
+        // tracked until it's stored, so the file is always either tracked or journaled
+        try {
+            storer.execute(() -> store(entry));
+        } catch (RejectedExecutionException e) {
+            forget(entry);
+        }
+    }
+
+    private void store(Entry entry) {
+        synchronized (this) {
+            long sinceEvent = clock.getAsLong() - entry.lastEvent;
+            if (sinceEvent < quietNanos) {
+                // written to again while waiting
+                schedule(entry, quietNanos - sinceEvent);
+                return;
+            }
+        }
+
+        boolean stored;
+        try {
+            stored = onStable.store(entry.file, entry.firstEvent);
+        } catch (RuntimeException e) {
+            logger.error("Unexpected error while storing file: " + entry.file, e);
+            forget(entry);
+            return;
+        }
+
+        if (stored) {
+            forget(entry);
+        } else {
+            synchronized (this) {
+                retry(entry);
+            }
+        }
+    }
+
+    /**
+     * Checks the file again after a delay, starting at the quiet period and doubling with every failed attempt
+     */
+    private void retry(Entry entry) {
+        long delay = Math.min(MAX_RETRY_NANOS, Math.max(quietNanos, tickNanos) << Math.min(entry.failures, 20));
+        entry.failures++;
+        logger.warn("Could not store file: " + entry.file + ", trying again in " + TimeUnit.NANOSECONDS.toMillis(delay) + " ms");
+        schedule(entry, delay);
+    }
+
+    private void forget(Entry entry) {
+        synchronized (this) {
+            tracked.remove(entry.file);
+        }
+        capacity.release();
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static class Entry {
+        private final Path file;
+        private final long firstEvent;
+        private long size;
+        private long modified;
+        private long lastEvent;
+        private long rounds;
+        // attempts to store it which failed
+        private int failures = 0;
+
+        private Entry(Path file, long size, long modified, long lastEvent) {
+            this.file = file;
+            this.size = size;
+            this.modified = modified;
+            this.firstEvent = lastEvent;
+            this.lastEvent = lastEvent;
+        }
+    }
+}
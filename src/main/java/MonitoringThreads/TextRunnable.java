@@ -6,20 +6,19 @@ import org.apache.tika.exception.TikaException;
 import org.apache.tika.io.TikaInputStream;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.parser.ParseContext;
-import org.apache.tika.parser.Parser;
 import org.apache.tika.parser.txt.TXTParser;
 import org.apache.tika.sax.BodyContentHandler;
-import org.elasticsearch.action.index.IndexResponse;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
+import parser.ChunkingContentHandler;
 import parser.FilesParser;
+import parser.JsonContentHandler;
+import parser.ParserPool;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
 
-import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
-
 public class TextRunnable extends BaseRunnable {
     private final static Logger logger = LogManager.getLogger(ImagesRunnable.class);
     private final static String TEXT_DIR = "txt";
@@ -34,12 +33,27 @@ public class TextRunnable extends BaseRunnable {
     }
 
     @Override
-    void indexFileContent(Path fileToIndex) {
-        Parser parser = new FilesParser(new TXTParser());
-        ParseContext context = new ParseContext();
-        context.set(Parser.class, parser);
+    public void indexFileContent(Path fileToIndex) {
+        indexText(this, fileToIndex);
+    }
+
+    /**
+     * Extracts the text file and indexes it into the txt index, on behalf of the runnable which stored it
+     */
+    static void indexText(BaseRunnable host, Path fileToIndex) {
+        FilesParser parser = ParserPool.INSTANCE.getIsolatedParser(TXTParser.class);
+        ParseContext context = ParserPool.INSTANCE.borrowContext(parser);
 
-        ContentHandler contentHandler = new BodyContentHandler();
+        // the body text is written straight into the document source, or into chunk documents if it may be large
+        JsonContentHandler document = ParserPool.INSTANCE.getJsonContentHandler();
+        ChunkingContentHandler chunks = null;
+        ContentHandler contentHandler;
+        if (CHUNK_SIZE > 0) {
+            chunks = host.newChunkingHandler(TEXT_DIR, fileToIndex);
+            contentHandler = new BodyContentHandler(chunks);
+        } else {
+            contentHandler = new BodyContentHandler(document.startStreamedField("content"));
+        }
         Metadata metadata = new Metadata();
 
         try(InputStream stream = TikaInputStream.get(fileToIndex)) {
@@ -47,24 +61,22 @@ public class TextRunnable extends BaseRunnable {
         } catch (IOException | TikaException | SAXException e) {
             logger.error("Could not extract content from file: " + fileToIndex, e);
 
-            storeFailedFile(fileToIndex);
+            host.storeFailedFile(fileToIndex, e.toString());
+            if (chunks != null) {
+                // the chunks indexed so far are deleted again
+                chunks.discard();
+            }
             return;
+        } finally {
+            ParserPool.INSTANCE.returnContext(parser, context);
         }
 
-        try {
-            IndexResponse response = ESTransport.ESClient.INSTANCE.getClient().prepareIndex(TEXT_DIR, "_doc", getFileRelativeName(fileToIndex))
-                    .setSource(jsonBuilder()
-                            .startObject()
-                            .field("content", contentHandler.toString())
-                            .field("metadata", metadata.toString())
-                            .endObject()).get();
-
-            if (logger.isInfoEnabled()) {
-                logger.info("Indexed file: " + getFileRelativeName(fileToIndex) + ", index ID=" + response.getId());
-            }
-        } catch (IOException e) {
-            logger.error("Could not index archive file : " + getFileRelativeName(fileToIndex), e);
+        if (chunks != null) {
+            document.field("chunks", chunks.finish());
         }
+
+        host.index(TEXT_DIR, fileToIndex, document
+                .field("metadata", metadata.toString()));
     }
 
     @Override
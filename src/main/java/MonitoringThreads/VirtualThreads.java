@@ -0,0 +1,50 @@
+package MonitoringThreads;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Optional execution mode enabled by emirates.virtual.threads. Each queued file is then processed on a virtual
+ * thread of its own and only the extractions are limited to emirates.workers at a time, so files waiting for the
+ * disk or for ES don't hold a worker. The virtual threads are started by VirtualThreadFactory, which is only built
+ * by the virtual-threads profile. Without it the platform workers are used.
+ */
+final class VirtualThreads {
+    private final static Logger logger = LogManager.getLogger(VirtualThreads.class);
+
+    private final static Constructor<? extends ThreadFactory> factory = load();
+
+    static final boolean ENABLED = factory != null;
+
+    private VirtualThreads() {
+    }
+
+    private static Constructor<? extends ThreadFactory> load() {
+        if (!Boolean.getBoolean("emirates.virtual.threads")) {
+            return null;
+        }
+
+        try {
+            return Class.forName("MonitoringThreads.VirtualThreadFactory")
+                    .asSubclass(ThreadFactory.class)
+                    .getDeclaredConstructor(String.class);
+        } catch (ClassNotFoundException | NoSuchMethodException | LinkageError e) {
+            logger.warn("Not built with the virtual-threads profile, using platform threads", e);
+            return null;
+        }
+    }
+
+    /**
+     * Starts virtual threads named &lt;name&gt;-&lt;n&gt;, only if {@link #ENABLED}
+     */
+    static ThreadFactory factory(String name) {
+        try {
+            return factory.newInstance(name);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create virtual thread factory", e);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package MonitoringThreads;
+
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only journal of the files a runnable has stored in its processed folder but not finished indexing.
+ *
+ * Records are written into a memory-mapped file, so they survive a crash of the process as soon as they are
+ * appended. A background thread forces the mapping to disk every sync interval, which group-commits all
+ * records appended in between. The same thread rewrites the journal with only the pending entries once half
+ * of the mapping is used.
+ *
+ * Record layout: type (1 byte), path length (2 bytes), UTF-8 path, followed by name length (2 bytes) and UTF-8
+ * name for an enqueue record, the name the file had before it was stored. The type is written last, so a torn
+ * record reads as the end of the journal.
+ */
+class WorkJournal {
+    private final static Logger logger = LogManager.getLogger(WorkJournal.class);
+
+    private final static byte END = 0;
+    private final static byte ENQUEUE = 1;
+    private final static byte ACK = 2;
+
+    private final Path file;
+    // path to original name
+    private final Map<String, String> pending = new LinkedHashMap<>();
+    // a daemon, so it doesn't keep the JVM alive, the records are in the mapping once appended
+    private final ScheduledExecutorService background = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "journal-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private int mappedSize;
+    private MappedByteBuffer buffer;
+    private boolean dirty = false;
+
+    WorkJournal(Path file, int mappedSize, long syncMillis) throws IOException {
+        this.file = file;
+        this.mappedSize = mappedSize;
+
+        map();
+        replay();
+
+        background.scheduleWithFixedDelay(this::syncAndCompact, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Files enqueued before the last shutdown or crash which were never acknowledged, in enqueue order
+     */
+    synchronized List<Path> unacknowledged() {
+        List<Path> paths = new ArrayList<>(pending.size());
+        for (String path : pending.keySet()) {
+            paths.add(Paths.get(path));
+        }
+        return paths;
+    }
+
+    /**
+     * Number of files enqueued and not acknowledged
+     */
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Whether the file is enqueued and not acknowledged
+     */
+    synchronized boolean contains(Path path) {
+        return pending.containsKey(path.toString());
+    }
+
+    /**
+     * Name of the file before it was stored, null if it isn't pending
+     */
+    synchronized String originalName(Path path) {
+        return pending.get(path.toString());
+    }
+
+    synchronized void enqueue(Path path, String originalName) {
+        String key = path.toString();
+        if (!pending.containsKey(key)) {
+            pending.put(key, originalName);
+            append(ENQUEUE, key, originalName);
+        }
+    }
+
+    synchronized void ack(Path path) {
+        String key = path.toString();
+        if (pending.containsKey(key)) {
+            pending.remove(key);
+            append(ACK, key, null);
+        }
+    }
+
+    private void append(byte type, String path, String originalName) {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        byte[] nameBytes = originalName != null ? originalName.getBytes(StandardCharsets.UTF_8) : null;
+        int recordSize = 3 + bytes.length + (nameBytes != null ? 2 + nameBytes.length : 0);
+
+        if (buffer.remaining() < recordSize + 1) {
+            try {
+                compact();
+                while (buffer.remaining() < recordSize + 1) {
+                    mappedSize *= 2;
+                    map();
+                }
+            } catch (IOException e) {
+                logger.error("Could not make room in journal: " + file + ", record is lost: " + path, e);
+                return;
+            }
+        }
+
+        int start = buffer.position();
+        buffer.position(start + 1);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+        if (nameBytes != null) {
+            buffer.putShort((short) nameBytes.length);
+            buffer.put(nameBytes);
+        }
+        buffer.put(start, type);
+        dirty = true;
+    }
+
+    private void replay() {
+        buffer.position(0);
+        readRecords(pending);
+
+        if (!pending.isEmpty()) {
+            logger.info("Journal " + file + " has " + pending.size() + " unacknowledged files");
+        }
+    }
+
+    /**
+     * Reads records from the buffer position up to the first free byte, applying them to the given set if any
+     */
+    private void readRecords(Map<String, String> into) {
+        while (buffer.remaining() >= 3) {
+            int start = buffer.position();
+            byte type = buffer.get();
+            String path = type != END ? readString() : null;
+            String originalName = type == ENQUEUE && path != null ? readString() : null;
+            if (path == null || (type == ENQUEUE && originalName == null)) {
+                buffer.position(start);
+                break;
+            }
+
+            if (into == null) {
+                continue;
+            }
+            if (type == ENQUEUE) {
+                into.put(path, originalName);
+            } else {
+                into.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Reads a length-prefixed string, null if it doesn't fit into the rest of the buffer
+     */
+    private String readString() {
+        if (buffer.remaining() < 2) {
+            return null;
+        }
+        int length = buffer.getShort() & 0xffff;
+        if (length > buffer.remaining()) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private synchronized void syncAndCompact() {
+        try {
+            if (buffer.position() > mappedSize / 2) {
+                compact();
+            } else if (dirty) {
+                buffer.force();
+                dirty = false;
+            }
+        } catch (IOException e) {
+            logger.error("Could not compact journal: " + file, e);
+        }
+    }
+
+    /**
+     * Rewrites the journal with the pending entries only and maps the new file
+     */
+    private void compact() throws IOException {
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        try (FileChannel channel = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Map.Entry<String, String> entry : pending.entrySet()) {
+                byte[] bytes = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                byte[] nameBytes = entry.getValue().getBytes(StandardCharsets.UTF_8);
+                ByteBuffer record = ByteBuffer.allocate(5 + bytes.length + nameBytes.length);
+                record.put(ENQUEUE).putShort((short) bytes.length).put(bytes)
+                        .putShort((short) nameBytes.length).put(nameBytes).flip();
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            }
+            channel.force(true);
+        }
+
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map();
+        dirty = false;
+
+        // too many pending entries to stay below the compaction threshold
+        if (buffer.position() > mappedSize / 2) {
+            mappedSize *= 2;
+            map();
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Compacted journal " + file + " to " + pending.size() + " entries");
+        }
+    }
+
+    /**
+     * Maps the journal file and positions the buffer after its last record
+     */
+    private void map() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(mappedSize, raf.length()));
+            mappedSize = buffer.capacity();
+        }
+
+        readRecords(null);
+    }
+}
@@ -0,0 +1,102 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in nanoseconds with a bounded relative error, like an HdrHistogram with 1.5 significant
+ * digits. Values below LINEAR_BUCKETS, 2 * 32 = 64 ns, get a bucket each. Above them every power of two, 64-127,
+ * 128-255 and so on, is split into 32 buckets, so a value is reported at most about 3% too high. Recording is one atomic increment and needs no lock.
+ */
+public class LatencyHistogram {
+    private final static int SUB_BUCKET_BITS = 5;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 0-31 and 32-63 are both split into SUB_BUCKETS buckets of width 1
+    private final static int LINEAR_BUCKETS = 2 * SUB_BUCKETS;
+    // buckets for all positive longs
+    private final static int BUCKETS = bucket(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucket(nanos));
+        count.increment();
+        sum.add(nanos);
+
+        long current;
+        while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+            // retried until no larger value is recorded concurrently
+        }
+    }
+
+    /**
+     * Records the time elapsed since the given {@link System#nanoTime()}
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * The value at the given percentile (0-100), as the highest value of its bucket
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int bucket(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long highestValue(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long subBucket = bucket - shift * SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
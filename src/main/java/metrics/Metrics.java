@@ -0,0 +1,240 @@
+package metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the pipeline's latency histograms, counters and gauges, by dotted names like "archive.parse".
+ *
+ * They are exposed over JMX as the attributes of emirates:type=Metrics, histograms as &lt;name&gt;.count,
+ * &lt;name&gt;.mean, .p50, .p90, .p99, .p999 and .max in milliseconds. With emirates.metrics.port they're also
+ * served in the Prometheus text format on http://localhost:&lt;port&gt;/metrics.
+ */
+public class Metrics implements DynamicMBean {
+    private final static Logger logger = LogManager.getLogger(Metrics.class);
+
+    public static final Metrics INSTANCE = new Metrics();
+
+    private final static double[] PERCENTILES = {50, 90, 99, 99.9};
+    private final static String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+    private final static String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+    private final static double NANOS_PER_MILLI = 1e6;
+    private final static double NANOS_PER_SECOND = 1e9;
+
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private HttpServer server;
+
+    private Metrics() {
+    }
+
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Exposes a value read when the metrics are, e.g. a queue depth
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Registers the MBean and starts the HTTP endpoint if a port is set
+     */
+    public synchronized void start() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("emirates:type=Metrics");
+            if (!mBeanServer.isRegistered(name)) {
+                mBeanServer.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            logger.error("Could not register the metrics MBean", e);
+        }
+
+        int port = Integer.getInteger("emirates.metrics.port", 0);
+        if (port > 0 && server == null) {
+            try {
+                server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            } catch (IOException e) {
+                logger.error("Could not start the metrics endpoint on port " + port, e);
+                return;
+            }
+            server.createContext("/metrics", exchange -> {
+                byte[] body = toText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "metrics-http");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            server.start();
+            logger.info("Serving metrics on http://localhost:" + server.getAddress().getPort() + "/metrics");
+        }
+    }
+
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    /**
+     * All metrics in the Prometheus text format, histograms as summaries in seconds
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            String name = metricName(entry.getKey()) + "_seconds";
+            LatencyHistogram histogram = entry.getValue();
+            text.append("# TYPE ").append(name).append(" summary\n");
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                text.append(name).append("{quantile=\"").append(QUANTILES[i]).append("\"} ")
+                        .append(format(histogram.getPercentile(PERCENTILES[i]) / NANOS_PER_SECOND)).append('\n');
+            }
+            text.append(name).append("_sum ").append(format(histogram.getSum() / NANOS_PER_SECOND)).append('\n');
+            text.append(name).append("_count ").append(histogram.getCount()).append('\n');
+        }
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            String name = metricName(entry.getKey()) + "_total";
+            text.append("# TYPE ").append(name).append(" counter\n");
+            text.append(name).append(' ').append(entry.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            String name = metricName(entry.getKey());
+            text.append("# TYPE ").append(name).append(" gauge\n");
+            text.append(name).append(' ').append(entry.getValue().getAsLong()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static String metricName(String name) {
+        return "emirates_" + name.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        LongAdder counter = counters.get(attribute);
+        if (counter != null) {
+            return counter.sum();
+        }
+        LongSupplier gauge = gauges.get(attribute);
+        if (gauge != null) {
+            return gauge.getAsLong();
+        }
+
+        int dot = attribute.lastIndexOf('.');
+        LatencyHistogram histogram = dot == -1 ? null : histograms.get(attribute.substring(0, dot));
+        if (histogram != null) {
+            String statistic = attribute.substring(dot + 1);
+            switch (statistic) {
+                case "count":
+                    return histogram.getCount();
+                case "mean":
+                    return histogram.getMean() / NANOS_PER_MILLI;
+                case "max":
+                    return histogram.getMax() / NANOS_PER_MILLI;
+                default:
+                    for (int i = 0; i < PERCENTILE_NAMES.length; i++) {
+                        if (PERCENTILE_NAMES[i].equals(statistic)) {
+                            return histogram.getPercentile(PERCENTILES[i]) / NANOS_PER_MILLI;
+                        }
+                    }
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // left out, as the interface expects
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        // no operations, only attributes
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String name : histograms.keySet()) {
+            attributes.add(new MBeanAttributeInfo(name + ".count", "long", "Recorded durations", true, false, false));
+            attributes.add(new MBeanAttributeInfo(name + ".mean", "double", "Mean in ms", true, false, false));
+            for (String percentile : PERCENTILE_NAMES) {
+                attributes.add(new MBeanAttributeInfo(name + "." + percentile, "double", percentile + " in ms", true, false, false));
+            }
+            attributes.add(new MBeanAttributeInfo(name + ".max", "double", "Maximum in ms", true, false, false));
+        }
+        for (String name : counters.keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", "Counter", true, false, false));
+        }
+        for (String name : gauges.keySet()) {
+            attributes.add(new MBeanAttributeInfo(name, "long", "Gauge", true, false, false));
+        }
+
+        return new MBeanInfo(Metrics.class.getName(), "Latencies and counters of the indexing pipeline",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
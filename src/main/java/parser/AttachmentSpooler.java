@@ -0,0 +1,160 @@
+package parser;
+
+import org.apache.james.mime4j.MimeException;
+import org.apache.james.mime4j.codec.DecodeMonitor;
+import org.apache.james.mime4j.dom.field.ContentDispositionField;
+import org.apache.james.mime4j.dom.field.ContentTypeField;
+import org.apache.james.mime4j.dom.field.ParsedField;
+import org.apache.james.mime4j.field.LenientFieldParser;
+import org.apache.james.mime4j.parser.ContentHandler;
+import org.apache.james.mime4j.stream.BodyDescriptor;
+import org.apache.james.mime4j.stream.Field;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copies the attachments out of a mime4j parse while passing all events on to another handler. The other handler
+ * gets an empty body for attachments, so their content isn't held in memory twice, and big ones are kept in
+ * temporary files only.
+ *
+ * A part is an attachment if its Content-Disposition is attachment or it has a file name.
+ */
+public class AttachmentSpooler implements ContentHandler {
+    private final static InputStream EMPTY = new ByteArrayInputStream(new byte[0]);
+
+    public static class SpooledAttachment {
+        public final String name;
+        public final SpooledInput input;
+
+        SpooledAttachment(String name, SpooledInput input) {
+            this.name = name;
+            this.input = input;
+        }
+    }
+
+    private final ContentHandler delegate;
+    private final int memoryLimit;
+    private final long maxSize;
+    private final List<SpooledAttachment> attachments = new ArrayList<>();
+    private int skipped = 0;
+
+    // headers of the current part
+    private boolean attachment;
+    private String name;
+
+    /**
+     * @param memoryLimit attachments bigger than this are spilled to a temporary file
+     * @param maxSize     attachments bigger than this are skipped
+     */
+    public AttachmentSpooler(ContentHandler delegate, int memoryLimit, long maxSize) {
+        this.delegate = delegate;
+        this.memoryLimit = memoryLimit;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * The attachments copied so far, the caller is responsible for closing them
+     */
+    public List<SpooledAttachment> getAttachments() {
+        return attachments;
+    }
+
+    /**
+     * The number of attachments bigger than the maximum size
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    @Override
+    public void startHeader() throws MimeException {
+        attachment = false;
+        name = null;
+        delegate.startHeader();
+    }
+
+    @Override
+    public void field(Field rawField) throws MimeException {
+        ParsedField field = LenientFieldParser.getParser().parse(rawField, DecodeMonitor.SILENT);
+        if (field instanceof ContentDispositionField) {
+            ContentDispositionField disposition = (ContentDispositionField) field;
+            attachment |= disposition.isAttachment();
+            if (disposition.getFilename() != null) {
+                name = disposition.getFilename();
+            }
+        } else if (field instanceof ContentTypeField && name == null) {
+            name = ((ContentTypeField) field).getParameter("name");
+        }
+        delegate.field(rawField);
+    }
+
+    @Override
+    public void body(BodyDescriptor bd, InputStream is) throws MimeException, IOException {
+        if (!attachment && name == null) {
+            delegate.body(bd, is);
+            return;
+        }
+
+        SpooledInput input = SpooledInput.spool(is, memoryLimit, maxSize);
+        if (input == null) {
+            skipped++;
+        } else {
+            attachments.add(new SpooledAttachment(name, input));
+        }
+        delegate.body(bd, EMPTY);
+    }
+
+    @Override
+    public void startMessage() throws MimeException {
+        delegate.startMessage();
+    }
+
+    @Override
+    public void endMessage() throws MimeException {
+        delegate.endMessage();
+    }
+
+    @Override
+    public void startBodyPart() throws MimeException {
+        delegate.startBodyPart();
+    }
+
+    @Override
+    public void endBodyPart() throws MimeException {
+        delegate.endBodyPart();
+    }
+
+    @Override
+    public void endHeader() throws MimeException {
+        delegate.endHeader();
+    }
+
+    @Override
+    public void preamble(InputStream is) throws MimeException, IOException {
+        delegate.preamble(is);
+    }
+
+    @Override
+    public void epilogue(InputStream is) throws MimeException, IOException {
+        delegate.epilogue(is);
+    }
+
+    @Override
+    public void startMultipart(BodyDescriptor bd) throws MimeException {
+        delegate.startMultipart(bd);
+    }
+
+    @Override
+    public void endMultipart() throws MimeException {
+        delegate.endMultipart();
+    }
+
+    @Override
+    public void raw(InputStream is) throws MimeException, IOException {
+        delegate.raw(is);
+    }
+}
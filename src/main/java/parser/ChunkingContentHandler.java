@@ -0,0 +1,128 @@
+package parser;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Splits the text of the SAX character events into chunk documents of about {@code chunkSize} characters and
+ * hands each one over as soon as it's complete, so the memory used doesn't depend on the size of the file.
+ * A chunk is cut at the first whitespace after the chunk size, or {@link #MAX_OVERRUN} characters later.
+ * If the parse fails, {@link #discard} tells the listener to take back the chunks handed over.
+ *
+ * Chunk document: {"parent": parentId, "chunk": number, "content": text}
+ */
+public class ChunkingContentHandler extends DefaultHandler {
+    // how far a chunk may grow past its size while looking for whitespace
+    private final static int MAX_OVERRUN = 1024;
+
+    public interface ChunkListener {
+        void onChunk(int number, BytesReference source);
+
+        /**
+         * The parse failed, the chunks handed over are to be deleted
+         */
+        void onDiscard();
+    }
+
+    private final String parentId;
+    private final int chunkSize;
+    private final long maxLength;
+    private final ChunkListener listener;
+    private JsonContentHandler current;
+    private int currentLength = 0;
+    private int chunks = 0;
+    private long totalLength = 0;
+
+    /**
+     * @param maxLength maximum number of characters of all chunks, -1 for no limit
+     */
+    public ChunkingContentHandler(String parentId, int chunkSize, long maxLength, ChunkListener listener) {
+        this.parentId = parentId;
+        this.chunkSize = chunkSize;
+        this.maxLength = maxLength;
+        this.listener = listener;
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        totalLength += length;
+        if (maxLength != -1 && totalLength > maxLength) {
+            throw new SAXException("Your document contained more than " + maxLength
+                    + " characters, and so your requested limit has been reached.");
+        }
+
+        int end = start + length;
+        int from = start;
+        for (int i = Math.max(start, start + chunkSize - currentLength); i < end; i++) {
+            int chunkLength = currentLength + i - from;
+            if (chunkLength < chunkSize || Character.isLowSurrogate(ch[i])) {
+                continue;
+            }
+
+            if (Character.isWhitespace(ch[i]) || chunkLength >= chunkSize + MAX_OVERRUN) {
+                write(ch, from, i - from);
+                emit();
+                from = i;
+                i += chunkSize - 1;
+            }
+        }
+        write(ch, from, end - from);
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        characters(ch, start, length);
+    }
+
+    /**
+     * Hands over the last, partial chunk
+     *
+     * @return the number of chunks
+     */
+    public int finish() {
+        if (currentLength > 0) {
+            emit();
+        }
+        return chunks;
+    }
+
+    /**
+     * Drops the partial chunk and discards the ones handed over, once the parse failed
+     */
+    public void discard() {
+        if (current != null) {
+            // gives the scratch buffer back
+            current.bytes();
+            current = null;
+            currentLength = 0;
+        }
+        listener.onDiscard();
+    }
+
+    private void write(char[] ch, int start, int length) throws SAXException {
+        if (length == 0) {
+            return;
+        }
+
+        if (current == null) {
+            current = ParserPool.INSTANCE.getJsonContentHandler(-1)
+                    .field("parent", parentId)
+                    .field("chunk", chunks)
+                    .startStreamedField("content");
+        }
+        current.characters(ch, start, length);
+        currentLength += length;
+    }
+
+    private void emit() {
+        if (current == null) {
+            return;
+        }
+
+        BytesReference source = current.bytes();
+        current = null;
+        currentLength = 0;
+        listener.onChunk(chunks++, source);
+    }
+}
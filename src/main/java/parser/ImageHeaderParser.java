@@ -0,0 +1,483 @@
+package parser;
+
+import com.adobe.xmp.XMPException;
+import com.adobe.xmp.XMPMetaFactory;
+import com.drew.imaging.ImageProcessingException;
+import com.drew.imaging.jpeg.JpegMetadataReader;
+import com.drew.imaging.png.PngMetadataReader;
+import com.drew.imaging.tiff.TiffMetadataReader;
+import com.drew.imaging.webp.WebpMetadataReader;
+import com.drew.lang.BufferBoundsException;
+import com.drew.lang.ByteArrayReader;
+import com.drew.lang.RandomAccessReader;
+import com.drew.metadata.MetadataException;
+import com.drew.metadata.exif.ExifReader;
+import com.drew.metadata.file.FileMetadataReader;
+import com.drew.metadata.xmp.XmpDirectory;
+import com.drew.metadata.xmp.XmpReader;
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.io.TemporaryResources;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.parser.AbstractParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.image.ImageMetadataExtractor;
+import org.apache.tika.parser.image.xmp.JempboxExtractor;
+import org.apache.tika.sax.XHTMLContentHandler;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reads the EXIF, IPTC and XMP metadata of JPEG, PNG, TIFF, WebP and HEIC/HEIF images. Only the header structures
+ * are read, through a pooled window of the file, and the image data is skipped without being read, so a photo of
+ * several MB costs a few KB of I/O. The metadata is the same as the one of the Tika image parsers and the body is empty.
+ */
+public class ImageHeaderParser extends AbstractParser {
+    private final static Set<MediaType> SUPPORTED_TYPES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            MediaType.image("jpeg"), MediaType.image("png"), MediaType.image("tiff"), MediaType.image("webp"),
+            MediaType.image("heic"), MediaType.image("heif"))));
+
+    private final static Set<String> HEIF_BRANDS = new HashSet<>(Arrays.asList(
+            "heic", "heix", "heim", "heis", "hevc", "hevx", "mif1", "msf1"));
+
+    private final static int WINDOW_SIZE = 64 * 1024;
+    // larger Exif or XMP items of a HEIF file are skipped
+    private final static int MAX_ITEM_SIZE = 16 * 1024 * 1024;
+    private final static ObjectPool<byte[]> WINDOWS = new ObjectPool<>(2 * Runtime.getRuntime().availableProcessors(),
+            () -> new byte[WINDOW_SIZE]);
+
+    @Override
+    public Set<MediaType> getSupportedTypes(ParseContext context) {
+        return SUPPORTED_TYPES;
+    }
+
+    @Override
+    public void parse(InputStream stream, ContentHandler handler, Metadata metadata, ParseContext context)
+            throws IOException, SAXException, TikaException {
+        TemporaryResources tmp = new TemporaryResources();
+        Path path = TikaInputStream.get(stream, tmp).getPath();
+        byte[] window = WINDOWS.borrow();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            com.drew.metadata.Metadata drewMetadata = readMetadata(new ChannelReader(channel, window));
+            // name, size and modification date, like the Tika parsers reading a file
+            new FileMetadataReader().read(path.toFile(), drewMetadata);
+            new Extractor(metadata).add(drewMetadata);
+        } catch (ImageProcessingException | MetadataException | XMPException e) {
+            throw new TikaException("Could not read image metadata", e);
+        } catch (BufferBoundsException e) {
+            throw new TikaException("Truncated or malformed image", e);
+        } finally {
+            WINDOWS.release(window);
+            tmp.dispose();
+        }
+
+        XHTMLContentHandler xhtml = new XHTMLContentHandler(handler, metadata);
+        xhtml.startDocument();
+        xhtml.endDocument();
+    }
+
+    private static com.drew.metadata.Metadata readMetadata(ChannelReader image) throws IOException, ImageProcessingException, TikaException {
+        ByteBuffer header = ByteBuffer.wrap(image.getBytes(0, (int) Math.min(16, image.getLength())));
+        if (startsWith(header, 0, 0xff, 0xd8, 0xff)) {
+            return JpegMetadataReader.readMetadata(image.stream());
+        } else if (startsWith(header, 0, 0x89, 'P', 'N', 'G')) {
+            return PngMetadataReader.readMetadata(image.stream());
+        } else if (startsWith(header, 0, 'I', 'I', 42, 0) || startsWith(header, 0, 'M', 'M', 0, 42)) {
+            return TiffMetadataReader.readMetadata(image);
+        } else if (startsWith(header, 0, 'R', 'I', 'F', 'F') && startsWith(header, 8, 'W', 'E', 'B', 'P')) {
+            return WebpMetadataReader.readMetadata(image.stream());
+        } else if (isHeif(header)) {
+            return readHeifMetadata(image);
+        }
+        throw new TikaException("Unsupported image format");
+    }
+
+    /**
+     * Whether the file starts with the ftyp box of a HEIF image, which the Tika magic doesn't know
+     */
+    static boolean isHeif(ByteBuffer image) {
+        return startsWith(image, 4, 'f', 't', 'y', 'p') && image.limit() >= 12 && HEIF_BRANDS.contains(fourCC(image, 8));
+    }
+
+    /**
+     * Reads the Exif and XMP items of a HEIF file. Only the boxes of its meta box are read: the item types from
+     * iinf and their locations from iloc.
+     */
+    private static com.drew.metadata.Metadata readHeifMetadata(RandomAccessReader image) throws IOException {
+        com.drew.metadata.Metadata metadata = new com.drew.metadata.Metadata();
+        int length = (int) image.getLength();
+
+        Box meta = Box.find(image, 0, length, "meta");
+        if (meta == null) {
+            return metadata;
+        }
+        // meta is a full box, its children follow the version and flags
+        Box iinf = Box.find(image, meta.body + 4, meta.end, "iinf");
+        Box iloc = Box.find(image, meta.body + 4, meta.end, "iloc");
+        if (iinf == null || iloc == null) {
+            return metadata;
+        }
+
+        int exifItem = -1;
+        int xmpItem = -1;
+        int version = image.getUInt8(iinf.body);
+        int position = iinf.body + 4 + (version == 0 ? 2 : 4);
+        while (position + 8 <= iinf.end) {
+            Box infe = Box.at(image, position, iinf.end);
+            if (infe == null) {
+                break;
+            }
+            int infeVersion = image.getUInt8(infe.body);
+            if (infe.type.equals("infe") && infeVersion >= 2) {
+                int itemId;
+                int offset = infe.body + 4;
+                if (infeVersion == 2) {
+                    itemId = image.getUInt16(offset);
+                    offset += 2;
+                } else {
+                    itemId = image.getInt32(offset);
+                    offset += 4;
+                }
+                // protection index, item type, then the null-terminated item name and, for mime items, content type
+                String itemType = image.getString(offset + 2, 4, StandardCharsets.ISO_8859_1);
+                if (itemType.equals("Exif")) {
+                    exifItem = itemId;
+                } else if (itemType.equals("mime")) {
+                    int contentType = offset + 6 + image.getNullTerminatedBytes(offset + 6, infe.end - offset - 6).length + 1;
+                    if (contentType < infe.end && image.getNullTerminatedString(contentType, infe.end - contentType,
+                            StandardCharsets.ISO_8859_1).equals("application/rdf+xml")) {
+                        xmpItem = itemId;
+                    }
+                }
+            }
+            position = infe.end;
+        }
+
+        byte[] exif = exifItem != -1 ? itemData(image, iloc, exifItem) : null;
+        // the Exif item starts with the offset of the TIFF header
+        if (exif != null && exif.length >= 4) {
+            ByteArrayReader reader = new ByteArrayReader(exif);
+            new ExifReader().extract(reader, metadata, 4 + reader.getInt32(0));
+        }
+        byte[] xmp = xmpItem != -1 ? itemData(image, iloc, xmpItem) : null;
+        if (xmp != null) {
+            new XmpReader().extract(xmp, metadata);
+        }
+        return metadata;
+    }
+
+    /**
+     * The first extent of an item stored in the file, null if it can't be found or is too large for metadata
+     */
+    private static byte[] itemData(RandomAccessReader image, Box iloc, int itemId) throws IOException {
+        int version = image.getUInt8(iloc.body);
+        int position = iloc.body + 4;
+        int offsetSize = image.getUInt8(position) >> 4;
+        int lengthSize = image.getUInt8(position) & 0xf;
+        int baseOffsetSize = image.getUInt8(position + 1) >> 4;
+        int indexSize = version == 1 || version == 2 ? image.getUInt8(position + 1) & 0xf : 0;
+        position += 2;
+
+        long itemCount;
+        if (version < 2) {
+            itemCount = image.getUInt16(position);
+            position += 2;
+        } else {
+            itemCount = image.getUInt32(position);
+            position += 4;
+        }
+
+        for (long i = 0; i < itemCount && position < iloc.end; i++) {
+            int id;
+            if (version < 2) {
+                id = image.getUInt16(position);
+                position += 2;
+            } else {
+                id = image.getInt32(position);
+                position += 4;
+            }
+            int constructionMethod = 0;
+            if (version == 1 || version == 2) {
+                constructionMethod = image.getUInt16(position) & 0xf;
+                position += 2;
+            }
+            // data reference index
+            position += 2;
+            long baseOffset = readUnsigned(image, position, baseOffsetSize);
+            position += baseOffsetSize;
+            int extentCount = image.getUInt16(position);
+            position += 2;
+
+            for (int e = 0; e < extentCount; e++) {
+                position += indexSize;
+                long extentOffset = readUnsigned(image, position, offsetSize);
+                position += offsetSize;
+                long extentLength = readUnsigned(image, position, lengthSize);
+                position += lengthSize;
+
+                // only items stored at an offset in the file are supported
+                if (id == itemId && e == 0 && constructionMethod == 0) {
+                    long start = baseOffset + extentOffset;
+                    long end = extentLength == 0 ? image.getLength() : start + extentLength;
+                    if (start < 0 || end > image.getLength() || start > end || end - start > MAX_ITEM_SIZE) {
+                        return null;
+                    }
+                    return image.getBytes((int) start, (int) (end - start));
+                }
+            }
+        }
+        return null;
+    }
+
+    private static long readUnsigned(RandomAccessReader image, int position, int size) throws IOException {
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            value = value << 8 | image.getUInt8(position + i);
+        }
+        return value;
+    }
+
+    private static boolean startsWith(ByteBuffer image, int position, int... bytes) {
+        if (image.limit() < position + bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if ((image.get(position + i) & 0xff) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String fourCC(ByteBuffer image, int position) {
+        byte[] code = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            code[i] = image.get(position + i);
+        }
+        return new String(code, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * An ISO base media file format box
+     */
+    private static class Box {
+        final String type;
+        final int body;
+        final int end;
+
+        private Box(String type, int body, int end) {
+            this.type = type;
+            this.body = body;
+            this.end = end;
+        }
+
+        /**
+         * The box at the position, null if it doesn't fit within the end
+         */
+        static Box at(RandomAccessReader image, int position, int end) throws IOException {
+            if (position + 8 > end) {
+                return null;
+            }
+            long size = image.getUInt32(position);
+            String type = image.getString(position + 4, 4, StandardCharsets.ISO_8859_1);
+            int body = position + 8;
+            if (size == 1) {
+                if (position + 16 > end) {
+                    return null;
+                }
+                size = image.getInt64(position + 8);
+                body += 8;
+            } else if (size == 0) {
+                size = end - position;
+            }
+            if (size < body - position || position + size > end) {
+                return null;
+            }
+            return new Box(type, body, (int) (position + size));
+        }
+
+        /**
+         * The first box of the type between the positions, only the box headers are read
+         */
+        static Box find(RandomAccessReader image, int position, int end, String type) throws IOException {
+            while (position < end) {
+                Box box = at(image, position, end);
+                if (box == null) {
+                    return null;
+                }
+                if (box.type.equals(type)) {
+                    return box;
+                }
+                position = box.end;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Maps the metadata read by metadata-extractor the way the Tika image parsers do, XMP packets are read by
+     * Jempbox like in the Tika JPEG parser
+     */
+    private static class Extractor extends ImageMetadataExtractor {
+        private final Metadata metadata;
+
+        Extractor(Metadata metadata) {
+            super(metadata);
+            this.metadata = metadata;
+        }
+
+        void add(com.drew.metadata.Metadata drewMetadata) throws MetadataException, XMPException, IOException, TikaException {
+            handle(drewMetadata);
+
+            for (XmpDirectory xmp : drewMetadata.getDirectoriesOfType(XmpDirectory.class)) {
+                if (xmp.getXMPMeta() != null) {
+                    byte[] packet = XMPMetaFactory.serializeToBuffer(xmp.getXMPMeta(), null);
+                    new JempboxExtractor(metadata).parse(new ByteArrayInputStream(packet));
+                }
+            }
+        }
+    }
+
+    /**
+     * Random access to a file through a window of it, which is read again wherever the reader leaves it. The TIFF
+     * reader follows offsets across the file, the other formats read the window as a stream.
+     */
+    private static class ChannelReader extends RandomAccessReader {
+        private final FileChannel channel;
+        private final byte[] window;
+        // offsets are ints, the headers of a larger file are read from its first 2 GB
+        private final int length;
+        private long windowStart = 0;
+        private int windowLength = 0;
+
+        ChannelReader(FileChannel channel, byte[] window) throws IOException {
+            this.channel = channel;
+            this.window = window;
+            this.length = (int) Math.min(channel.size(), Integer.MAX_VALUE);
+        }
+
+        /**
+         * Reads the file from its start, skipped bytes aren't read
+         */
+        InputStream stream() {
+            return new InputStream() {
+                private int position = 0;
+
+                @Override
+                public int read() throws IOException {
+                    return position < length ? getByte(position++) & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    if (position >= length) {
+                        return -1;
+                    }
+                    int count = Math.min(len, length - position);
+                    ChannelReader.this.read(position, b, off, count);
+                    position += count;
+                    return count;
+                }
+
+                @Override
+                public long skip(long n) {
+                    int count = (int) Math.max(0, Math.min(n, length - position));
+                    position += count;
+                    return count;
+                }
+
+                @Override
+                public int available() {
+                    return length - position;
+                }
+            };
+        }
+
+        @Override
+        public int toUnshiftedOffset(int localOffset) {
+            return localOffset;
+        }
+
+        @Override
+        public byte getByte(int index) throws IOException {
+            validateIndex(index, 1);
+            fill(index, 1);
+            return window[(int) (index - windowStart)];
+        }
+
+        @Override
+        public byte[] getBytes(int index, int count) throws IOException {
+            validateIndex(index, count);
+            byte[] bytes = new byte[count];
+            read(index, bytes, 0, count);
+            return bytes;
+        }
+
+        private void read(int index, byte[] bytes, int offset, int count) throws IOException {
+            if (count > window.length) {
+                readFully(index, ByteBuffer.wrap(bytes, offset, count));
+            } else {
+                fill(index, count);
+                System.arraycopy(window, (int) (index - windowStart), bytes, offset, count);
+            }
+        }
+
+        /**
+         * Reads the window from the index on, unless the bytes requested are in it already
+         */
+        private void fill(int index, int count) throws IOException {
+            if (index >= windowStart && index + count <= windowStart + windowLength) {
+                return;
+            }
+            windowStart = index;
+            windowLength = 0;
+            int size = Math.min(window.length, length - index);
+            readFully(index, ByteBuffer.wrap(window, 0, size));
+            windowLength = size;
+        }
+
+        private void readFully(long position, ByteBuffer target) throws IOException {
+            while (target.hasRemaining()) {
+                int read = channel.read(target, position);
+                if (read == -1) {
+                    throw new BufferBoundsException("File truncated while reading at " + position);
+                }
+                position += read;
+            }
+        }
+
+        @Override
+        protected void validateIndex(int index, int bytesRequested) throws IOException {
+            if (!isValidIndex(index, bytesRequested)) {
+                throw new BufferBoundsException(index, bytesRequested, length);
+            }
+        }
+
+        @Override
+        protected boolean isValidIndex(int index, int bytesRequested) {
+            return bytesRequested >= 0 && index >= 0 && (long) index + bytesRequested <= length;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+    }
+}
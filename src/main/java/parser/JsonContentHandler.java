@@ -0,0 +1,245 @@
+package parser;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Writes a JSON document source while a file is parsed. The text of the SAX character events goes straight
+ * into the value of the field opened by {@link #startStreamedField}, escaped and UTF-8 encoded through a small
+ * pooled scratch buffer, so no String of the whole content is ever built. The source is kept in paged buffers which
+ * are handed to the index request as they are, the content is held in memory once.
+ *
+ * Wrap it in a BodyContentHandler to get the body text only, like the BodyContentHandler of a Tika parse.
+ */
+public class JsonContentHandler extends DefaultHandler {
+    private final static byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final BytesStreamOutput out = new BytesStreamOutput();
+    private byte[] scratch;
+    private final int writeLimit;
+    private int scratchLength = 0;
+    private int written = 0;
+    private boolean streaming = false;
+    private boolean firstField = true;
+    // high surrogate of a pair split between two character events
+    private char pendingHighSurrogate = 0;
+    // time spent encoding, as opposed to parsing
+    private long buildNanos = 0;
+
+    /**
+     * @param scratch    encoding buffer, given back to the pool by {@link #bytes()}
+     * @param writeLimit maximum number of characters of a streamed field, -1 for no limit
+     */
+    JsonContentHandler(byte[] scratch, int writeLimit) {
+        this.scratch = scratch;
+        this.writeLimit = writeLimit;
+        writeRaw('{');
+    }
+
+    /**
+     * Opens a string field which takes the text of the following character events
+     */
+    public JsonContentHandler startStreamedField(String name) {
+        endStreamedField();
+        writeName(name);
+        writeRaw('"');
+        streaming = true;
+        written = 0;
+        return this;
+    }
+
+    /**
+     * Closes the field opened by {@link #startStreamedField}, if any
+     */
+    public JsonContentHandler endStreamedField() {
+        if (streaming) {
+            if (pendingHighSurrogate != 0) {
+                writeCodePoint(0xfffd);
+                pendingHighSurrogate = 0;
+            }
+            writeRaw('"');
+            flushScratch();
+            streaming = false;
+        }
+        return this;
+    }
+
+    /**
+     * Adds a string field, null values are written as JSON null
+     */
+    public JsonContentHandler field(String name, String value) {
+        long start = System.nanoTime();
+        endStreamedField();
+        writeName(name);
+        if (value == null) {
+            writeRaw('n');
+            writeRaw('u');
+            writeRaw('l');
+            writeRaw('l');
+        } else {
+            writeRaw('"');
+            writeEscaped(value.toCharArray(), 0, value.length());
+            writeRaw('"');
+        }
+        flushScratch();
+        buildNanos += System.nanoTime() - start;
+        return this;
+    }
+
+    /**
+     * Adds a number field
+     */
+    public JsonContentHandler field(String name, long value) {
+        long start = System.nanoTime();
+        endStreamedField();
+        writeName(name);
+        String digits = Long.toString(value);
+        for (int i = 0; i < digits.length(); i++) {
+            writeRaw(digits.charAt(i));
+        }
+        flushScratch();
+        buildNanos += System.nanoTime() - start;
+        return this;
+    }
+
+    /**
+     * Adds a string field with the text of the reader, reading it in chunks
+     */
+    public JsonContentHandler field(String name, Reader value) throws IOException {
+        startStreamedField(name);
+        char[] chunk = new char[4096];
+        int read;
+        while ((read = value.read(chunk)) != -1) {
+            writeEscaped(chunk, 0, read);
+        }
+        return endStreamedField();
+    }
+
+    /**
+     * Closes the document, the handler can't be written to afterwards
+     */
+    public BytesReference bytes() {
+        long start = System.nanoTime();
+        endStreamedField();
+        writeRaw('}');
+        flushScratch();
+
+        ParserPool.INSTANCE.returnScratch(scratch);
+        scratch = null;
+        BytesReference bytes = out.bytes();
+        buildNanos += System.nanoTime() - start;
+        return bytes;
+    }
+
+    /**
+     * Time spent writing the document so far, which is part of the parse when its content is streamed
+     */
+    public long getBuildNanos() {
+        return buildNanos;
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (!streaming) {
+            return;
+        }
+
+        if (writeLimit != -1 && written + length > writeLimit) {
+            throw new SAXException("Your document contained more than " + writeLimit
+                    + " characters, and so your requested limit has been reached.");
+        }
+        written += length;
+        long startNanos = System.nanoTime();
+        writeEscaped(ch, start, length);
+        buildNanos += System.nanoTime() - startNanos;
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        characters(ch, start, length);
+    }
+
+    private void writeName(String name) {
+        if (!firstField) {
+            writeRaw(',');
+        }
+        firstField = false;
+
+        writeRaw('"');
+        writeEscaped(name.toCharArray(), 0, name.length());
+        writeRaw('"');
+        writeRaw(':');
+    }
+
+    private void writeEscaped(char[] ch, int start, int length) {
+        for (int i = start; i < start + length; i++) {
+            char c = ch[i];
+
+            if (pendingHighSurrogate != 0) {
+                char high = pendingHighSurrogate;
+                pendingHighSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    writeCodePoint(Character.toCodePoint(high, c));
+                    continue;
+                }
+                writeCodePoint(0xfffd);
+            }
+
+            if (c == '"' || c == '\\') {
+                writeRaw('\\');
+                writeRaw(c);
+            } else if (c < 0x20) {
+                writeRaw('\\');
+                writeRaw('u');
+                writeRaw('0');
+                writeRaw('0');
+                writeRaw(HEX[c >> 4]);
+                writeRaw(HEX[c & 0xf]);
+            } else if (Character.isHighSurrogate(c)) {
+                pendingHighSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                writeCodePoint(0xfffd);
+            } else {
+                writeCodePoint(c);
+            }
+        }
+    }
+
+    private void writeCodePoint(int codePoint) {
+        if (codePoint < 0x80) {
+            writeRaw(codePoint);
+        } else if (codePoint < 0x800) {
+            writeRaw(0xc0 | codePoint >> 6);
+            writeRaw(0x80 | codePoint & 0x3f);
+        } else if (codePoint < 0x10000) {
+            writeRaw(0xe0 | codePoint >> 12);
+            writeRaw(0x80 | codePoint >> 6 & 0x3f);
+            writeRaw(0x80 | codePoint & 0x3f);
+        } else {
+            writeRaw(0xf0 | codePoint >> 18);
+            writeRaw(0x80 | codePoint >> 12 & 0x3f);
+            writeRaw(0x80 | codePoint >> 6 & 0x3f);
+            writeRaw(0x80 | codePoint & 0x3f);
+        }
+    }
+
+    /**
+     * Appends a single byte
+     */
+    private void writeRaw(int b) {
+        if (scratchLength == scratch.length) {
+            flushScratch();
+        }
+        scratch[scratchLength++] = (byte) b;
+    }
+
+    private void flushScratch() {
+        out.writeBytes(scratch, 0, scratchLength);
+        scratchLength = 0;
+    }
+}
@@ -0,0 +1,27 @@
+package parser;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Free instances of an object which is expensive to build and not thread-safe, shared by all threads. Borrowing
+ * creates a new one when none is free, returning drops it when the pool is full.
+ */
+class ObjectPool<T> {
+    private final ArrayBlockingQueue<T> free;
+    private final Supplier<T> factory;
+
+    ObjectPool(int capacity, Supplier<T> factory) {
+        this.free = new ArrayBlockingQueue<>(capacity);
+        this.factory = factory;
+    }
+
+    T borrow() {
+        T object = free.poll();
+        return object != null ? object : factory.get();
+    }
+
+    void release(T object) {
+        free.offer(object);
+    }
+}
@@ -0,0 +1,243 @@
+package parser;
+
+import org.apache.james.mime4j.codec.DecodeMonitor;
+import org.apache.james.mime4j.message.DefaultBodyDescriptorBuilder;
+import org.apache.james.mime4j.parser.AbstractContentHandler;
+import org.apache.james.mime4j.parser.MimeStreamParser;
+import org.apache.james.mime4j.stream.MimeConfig;
+import org.apache.log4j.LogManager;
+import org.apache.log4j.Logger;
+import org.apache.tika.config.TikaConfig;
+import org.apache.tika.detect.Detector;
+import org.apache.tika.fork.ForkParser;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.mime.MediaType;
+import org.apache.tika.mime.MimeTypes;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hands out parsers so that they're not built for every file. Tika parsers are thread-safe and shared by all
+ * threads, each one wrapped in a {@link FilesParser}. Parse contexts, JSON scratch buffers and mime4j parsers
+ * are not, they're borrowed from bounded pools for a parse, so they're reused by virtual threads as well.
+ */
+public class ParserPool {
+    private final static Logger logger = LogManager.getLogger(ParserPool.class);
+
+    // same limit as a default BodyContentHandler
+    private final static int WRITE_LIMIT = 100 * 1000;
+    private final static int SCRATCH_SIZE = 8 * 1024;
+    // free instances kept of each kind of scratch buffer, context and mime4j parser
+    private final static int MAX_POOLED = 2 * Runtime.getRuntime().availableProcessors();
+    private final static MediaType HEIC = MediaType.image("heic");
+
+    // forked JVMs per parser type running the parses of getIsolatedParser, 0 to parse in this JVM
+    private final static int FORK_POOL_SIZE = Integer.getInteger("emirates.parse.fork.jvms", 0);
+    private final static String FORK_JAVA_COMMAND = System.getProperty("emirates.parse.fork.command", "java -Xmx512m");
+
+    // created after the limits above, which the pools are sized with
+    public static final ParserPool INSTANCE = new ParserPool();
+
+    private final ConcurrentMap<Class<? extends Parser>, FilesParser> parsers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<? extends Parser>, FilesParser> isolatedParsers = new ConcurrentHashMap<>();
+    // parser of the embedded documents of the parses of a forked parser, it is sent to the forked JVM
+    private final ConcurrentMap<FilesParser, FilesParser> recursiveParsers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<FilesParser, ObjectPool<ParseContext>> contexts = new ConcurrentHashMap<>();
+    private final ObjectPool<byte[]> scratchBuffers = new ObjectPool<>(2 * MAX_POOLED, () -> new byte[SCRATCH_SIZE]);
+    private final ObjectPool<MimeStreamParser> mimeParsers = new ObjectPool<>(MAX_POOLED, ParserPool::newMimeParser);
+    // thread-safe, it only reads the first bytes of the stream
+    private final Detector detector = TikaConfig.getDefaultConfig().getDetector();
+    // magic bytes and file name patterns only, unlike the container detectors of the default detector
+    private final MimeTypes mimeTypes = TikaConfig.getDefaultConfig().getMimeRepository();
+
+    private ParserPool() {
+    }
+
+    /**
+     * The shared parser of the given type, it is also the recursive parser for embedded documents
+     */
+    public FilesParser getParser(Class<? extends Parser> type) {
+        return parsers.computeIfAbsent(type, t -> {
+            try {
+                return new FilesParser(t.newInstance());
+            } catch (InstantiationException | IllegalAccessException e) {
+                throw new IllegalArgumentException("Could not create parser: " + t.getName(), e);
+            }
+        });
+    }
+
+    /**
+     * The shared parser of the given type for whole files. If emirates.parse.fork.jvms is set it parses in a pool of
+     * forked JVMs, so that a crash or a runaway parse only costs a child JVM, otherwise it's {@link #getParser}.
+     * Only use it with contexts of {@link #borrowContext}, anything set in the context is sent to the forked JVM.
+     */
+    public FilesParser getIsolatedParser(Class<? extends Parser> type) {
+        if (FORK_POOL_SIZE <= 0) {
+            return getParser(type);
+        }
+
+        return isolatedParsers.computeIfAbsent(type, t -> {
+            FilesParser parser = getParser(t);
+            ForkParser forkParser = new ForkParser(ParserPool.class.getClassLoader(), parser);
+            forkParser.setPoolSize(FORK_POOL_SIZE);
+            forkParser.setJavaCommand(Arrays.asList(FORK_JAVA_COMMAND.trim().split("\\s+")));
+
+            FilesParser isolated = new FilesParser(forkParser);
+            recursiveParsers.put(isolated, parser);
+            return isolated;
+        });
+    }
+
+    /**
+     * A parse context for the given parser, to be returned with {@link #returnContext} once the parse is over
+     */
+    public ParseContext borrowContext(FilesParser parser) {
+        return contexts.computeIfAbsent(parser, p -> new ObjectPool<>(MAX_POOLED, () -> {
+            ParseContext context = new ParseContext();
+            context.set(Parser.class, recursiveParsers.getOrDefault(p, p));
+            return context;
+        })).borrow();
+    }
+
+    public void returnContext(FilesParser parser, ParseContext context) {
+        contexts.get(parser).release(context);
+    }
+
+    /**
+     * Stops the forked JVMs
+     */
+    public void close() {
+        for (FilesParser parser : isolatedParsers.values()) {
+            ((ForkParser) parser.getWrappedParser()).close();
+        }
+    }
+
+    /**
+     * A handler writing a new JSON document. It borrows a scratch buffer from the pool and returns it once the
+     * document is complete.
+     *
+     * @param writeLimit maximum number of characters of a streamed field, -1 for no limit
+     */
+    public JsonContentHandler getJsonContentHandler(int writeLimit) {
+        return new JsonContentHandler(scratchBuffers.borrow(), writeLimit);
+    }
+
+    /**
+     * A JSON document handler with the write limit of a default BodyContentHandler
+     */
+    public JsonContentHandler getJsonContentHandler() {
+        return getJsonContentHandler(WRITE_LIMIT);
+    }
+
+    void returnScratch(byte[] scratch) {
+        scratchBuffers.release(scratch);
+    }
+
+    /**
+     * A mime4j parser set up with the given handler, to be returned with {@link #returnMimeParser} once the parse
+     * is over
+     */
+    public MimeStreamParser borrowMimeParser(org.apache.james.mime4j.parser.ContentHandler handler) {
+        MimeStreamParser parser = mimeParsers.borrow();
+        parser.setContentHandler(handler);
+        return parser;
+    }
+
+    public void returnMimeParser(MimeStreamParser parser) {
+        mimeParsers.release(parser);
+    }
+
+    /**
+     * Detects the type of a stream from its first bytes and the name in the metadata, the stream must support
+     * mark and is reset afterwards
+     */
+    public MediaType detect(InputStream stream, Metadata metadata) throws IOException {
+        return detector.detect(stream, metadata);
+    }
+
+    /**
+     * Detects the type of a file from the magic bytes at its start and its name, at most
+     * {@link MimeTypes#getMinLength()} bytes are read. HEIF images are recognised by their ftyp box.
+     */
+    public MediaType detect(Path file) throws IOException {
+        byte[] header = new byte[mimeTypes.getMinLength()];
+        int length = 0;
+        try (InputStream stream = Files.newInputStream(file)) {
+            int read;
+            while (length < header.length && (read = stream.read(header, length, header.length - length)) != -1) {
+                length += read;
+            }
+        }
+
+        if (ImageHeaderParser.isHeif(ByteBuffer.wrap(header, 0, length).slice())) {
+            return HEIC;
+        }
+
+        Metadata metadata = new Metadata();
+        metadata.set(Metadata.RESOURCE_NAME_KEY, file.getFileName().toString());
+        return mimeTypes.detect(new ByteArrayInputStream(header, 0, length), metadata);
+    }
+
+    /**
+     * The type and its supertypes, e.g. text/csv is also text/plain
+     */
+    public boolean isInstanceOf(MediaType type, Set<MediaType> types) {
+        for (MediaType t = type.getBaseType(); t != null; t = mimeTypes.getMediaTypeRegistry().getSupertype(t)) {
+            if (types.contains(t)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Creates the given parsers and runs them once on a tiny input, so that class loading and initialisation
+     * don't slow down the first files
+     */
+    @SafeVarargs
+    public final void warmUp(Class<? extends Parser>... types) {
+        byte[] sample = "warm up".getBytes(StandardCharsets.UTF_8);
+
+        for (Class<? extends Parser> type : types) {
+            FilesParser parser = getParser(type);
+            ParseContext context = borrowContext(parser);
+            try {
+                parser.parse(new ByteArrayInputStream(sample), new DefaultHandler(), new Metadata(), context);
+            } catch (Exception e) {
+                // the sample isn't a valid document for most parsers, loading their classes is what counts
+                logger.debug("Warm up of " + type.getSimpleName() + " ended with: " + e);
+            } finally {
+                returnContext(parser, context);
+            }
+        }
+
+        MimeStreamParser mimeParser = borrowMimeParser(new AbstractContentHandler() {
+        });
+        try {
+            mimeParser.parse(new ByteArrayInputStream("Subject: warm up\r\n\r\nwarm up".getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            logger.debug("Warm up of mime4j ended with: " + e);
+        } finally {
+            returnMimeParser(mimeParser);
+        }
+    }
+
+    private static MimeStreamParser newMimeParser() {
+        MimeStreamParser parser = new MimeStreamParser(MimeConfig.DEFAULT, DecodeMonitor.SILENT, new DefaultBodyDescriptorBuilder());
+        parser.setContentDecoding(true);
+        return parser;
+    }
+}
@@ -0,0 +1,97 @@
+package parser;
+
+import org.apache.tika.io.TikaInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A copy of a stream which can be parsed later on another thread, e.g. an archive entry or a mail attachment.
+ * Small streams are kept in memory, bigger ones are spilled to a temporary file which is deleted on close.
+ */
+public class SpooledInput implements Closeable {
+    private final byte[] bytes;
+    private final Path file;
+    private final long size;
+
+    private SpooledInput(byte[] bytes, Path file, long size) {
+        this.bytes = bytes;
+        this.file = file;
+        this.size = size;
+    }
+
+    /**
+     * Copies the stream, it isn't closed
+     *
+     * @param memoryLimit streams longer than this are spilled to a temporary file
+     * @param maxSize     maximum number of bytes to copy
+     * @return the copy, or null if the stream is longer than {@code maxSize}
+     */
+    public static SpooledInput spool(InputStream stream, int memoryLimit, long maxSize) throws IOException {
+        byte[] buffer = new byte[Math.max(1, Math.min(memoryLimit, 8 * 1024))];
+        int length = 0;
+        int read;
+        while ((read = stream.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+            if (length > maxSize) {
+                return null;
+            }
+            if (length == buffer.length) {
+                if (length >= memoryLimit) {
+                    return spill(stream, buffer, length, maxSize);
+                }
+                buffer = Arrays.copyOf(buffer, (int) Math.min(memoryLimit, 2L * length));
+            }
+        }
+        return new SpooledInput(length == buffer.length ? buffer : Arrays.copyOf(buffer, length), null, length);
+    }
+
+    private static SpooledInput spill(InputStream stream, byte[] head, int headLength, long maxSize) throws IOException {
+        Path file = Files.createTempFile("emirates-", ".spool");
+        long size = headLength;
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(head, 0, headLength);
+            int read;
+            while ((read = stream.read(head)) != -1) {
+                size += read;
+                if (size > maxSize) {
+                    break;
+                }
+                out.write(head, 0, read);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+
+        if (size > maxSize) {
+            Files.deleteIfExists(file);
+            return null;
+        }
+        return new SpooledInput(null, file, size);
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * A new stream over the copy
+     */
+    public InputStream open() throws IOException {
+        return file != null ? TikaInputStream.get(file) : TikaInputStream.get(new ByteArrayInputStream(bytes));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            Files.deleteIfExists(file);
+        }
+    }
+}
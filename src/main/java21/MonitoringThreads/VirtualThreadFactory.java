@@ -0,0 +1,19 @@
+package MonitoringThreads;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Starts named virtual threads. Only compiled by the virtual-threads profile, on JDK 21 or newer.
+ */
+class VirtualThreadFactory implements ThreadFactory {
+    private final ThreadFactory factory;
+
+    VirtualThreadFactory(String name) {
+        this.factory = Thread.ofVirtual().name(name + "-", 1).factory();
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        return factory.newThread(r);
+    }
+}
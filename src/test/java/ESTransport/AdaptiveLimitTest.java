@@ -0,0 +1,142 @@
+package ESTransport;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the limit on a fake clock, the latency of a request is how far the test moves it
+ */
+public class AdaptiveLimitTest {
+    private final static long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private final static long SLOW = TimeUnit.SECONDS.toNanos(5);
+
+    private final AtomicLong clock = new AtomicLong();
+
+    private AdaptiveLimit limit(int initialLimit, int maxLimit) {
+        return new AdaptiveLimit(initialLimit, maxLimit, 1, TimeUnit.SECONDS, clock::get);
+    }
+
+    /**
+     * Sends the requests one after the other
+     */
+    private void complete(AdaptiveLimit limit, int requests, long latencyNanos, boolean congested)
+            throws InterruptedException {
+        for (int i = 0; i < requests; i++) {
+            long acquiredAt = limit.acquire();
+            clock.addAndGet(latencyNanos);
+            assertEquals(latencyNanos, limit.release(acquiredAt, congested));
+        }
+    }
+
+    /**
+     * Sends the requests at the same time and completes them together
+     */
+    private void completeConcurrently(AdaptiveLimit limit, int requests, long latencyNanos, boolean congested)
+            throws InterruptedException {
+        long[] acquiredAt = new long[requests];
+        for (int i = 0; i < requests; i++) {
+            acquiredAt[i] = limit.acquire();
+        }
+        clock.addAndGet(latencyNanos);
+        for (int i = 0; i < requests; i++) {
+            limit.release(acquiredAt[i], congested);
+        }
+    }
+
+    @Test
+    public void growsByAboutOnePerRoundUpToTheMaximum() throws InterruptedException {
+        AdaptiveLimit limit = limit(2, 4);
+
+        // 2.5, 2.9, 3.24
+        complete(limit, 3, FAST, false);
+        assertEquals(3, limit.getLimit());
+        complete(limit, 4, FAST, false);
+        assertEquals(4, limit.getLimit());
+        complete(limit, 100, FAST, false);
+        assertEquals(4, limit.getLimit());
+    }
+
+    @Test
+    public void halvesWhenCongestedOrSlowDownToOne() throws InterruptedException {
+        AdaptiveLimit limit = limit(16, 16);
+
+        complete(limit, 1, FAST, true);
+        assertEquals(8, limit.getLimit());
+        complete(limit, 1, SLOW, false);
+        assertEquals(4, limit.getLimit());
+        complete(limit, 10, FAST, true);
+        assertEquals(1, limit.getLimit());
+    }
+
+    @Test
+    public void halvesOncePerRoundTrip() throws InterruptedException {
+        AdaptiveLimit limit = limit(16, 16);
+
+        // all sent before the first of them completed, they saw the same congestion
+        completeConcurrently(limit, 16, SLOW, false);
+        assertEquals(8, limit.getLimit());
+        completeConcurrently(limit, 8, FAST, true);
+        assertEquals(4, limit.getLimit());
+    }
+
+    @Test
+    public void halvesAgainForARequestSentAfterTheDecrease() throws InterruptedException {
+        AdaptiveLimit limit = limit(16, 16);
+
+        long first = limit.acquire();
+        clock.addAndGet(FAST);
+        long second = limit.acquire();
+        clock.addAndGet(FAST);
+        limit.release(first, true);
+        assertEquals(8, limit.getLimit());
+        // sent before the decrease
+        limit.release(second, true);
+        assertEquals(8, limit.getLimit());
+
+        complete(limit, 1, FAST, true);
+        assertEquals(4, limit.getLimit());
+    }
+
+    @Test
+    public void cancelKeepsTheLimit() throws InterruptedException {
+        AdaptiveLimit limit = limit(2, 4);
+
+        limit.acquire();
+        limit.cancel();
+        assertEquals(2, limit.getLimit());
+        assertEquals(0, limit.getInFlight());
+    }
+
+    @Test
+    public void acquireWaitsForAFreeSlot() throws InterruptedException {
+        AdaptiveLimit limit = limit(1, 1);
+        long acquiredAt = limit.acquire();
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                started.countDown();
+                limit.acquire();
+                acquired.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        started.await();
+
+        assertFalse(limit.awaitIdle(0, TimeUnit.MILLISECONDS));
+        assertEquals(1, acquired.getCount());
+        limit.release(acquiredAt, false);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        waiter.join();
+    }
+}
@@ -0,0 +1,186 @@
+package ESTransport;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.shard.ShardId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static ESTransport.RecordingListener.INDEXED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how the bulk requests in flight follow the state of {@link StubElasticsearch}
+ */
+public class BulkIndexerTest {
+    private final static int MAX_LIMIT = 8;
+
+    private StubElasticsearch es;
+    private RestBulkSender sender;
+    private BulkIndexer indexer;
+    private final RecordingListener listener = new RecordingListener();
+
+    @Before
+    public void setUp() throws IOException {
+        es = new StubElasticsearch();
+        sender = new RestBulkSender(es.getHost());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (indexer != null) {
+            indexer.close(30, TimeUnit.SECONDS);
+        }
+        sender.close();
+        es.close();
+    }
+
+    /**
+     * Creates an indexer sending a bulk request per document, the latency of its requests is measured by the clock
+     */
+    private void startIndexer(LongSupplier clock) {
+        indexer = new BulkIndexer(sender, 1, Long.MAX_VALUE, 1000, 4,
+                new AdaptiveLimit(MAX_LIMIT, MAX_LIMIT, 1, TimeUnit.SECONDS, clock), null);
+    }
+
+    private void index(int from, int to) {
+        for (int i = from; i < to; i++) {
+            indexer.add(new IndexRequest("txt", "_doc", "doc" + i).source("{}", XContentType.JSON), listener);
+        }
+    }
+
+    @Test
+    public void backsOffWhenThrottledAndRecovers() throws InterruptedException {
+        startIndexer(System::nanoTime);
+        es.setItemScript((index, id, attempt) -> attempt == 0 ? 429 : 201);
+        // so that requests overlap
+        es.setLatency(20);
+
+        index(0, 40);
+
+        // every round of rejections halves the limit, the following retries raise it again
+        int lowest = MAX_LIMIT;
+        while (!listener.await(40, 1, TimeUnit.MILLISECONDS)) {
+            lowest = Math.min(lowest, indexer.getConcurrencyLimit());
+        }
+        assertTrue(lowest <= MAX_LIMIT / 4);
+
+        es.setItemScript((index, id, attempt) -> 201);
+        index(40, 200);
+
+        assertTrue(listener.await(200, 30, TimeUnit.SECONDS));
+        assertTrue(indexer.getConcurrencyLimit() > 1);
+        assertTrue(es.getMaxInFlight() <= MAX_LIMIT);
+        for (int i = 0; i < 200; i++) {
+            assertEquals(INDEXED, listener.getOutcome("doc" + i));
+        }
+    }
+
+    @Test
+    public void backsOffWhenSlow() throws InterruptedException {
+        AtomicLong clock = new AtomicLong();
+        startIndexer(clock::get);
+        // both requests are sent before either is answered, each takes 1.1 s on the fake clock against a 1 s target
+        CountDownLatch sent = new CountDownLatch(2);
+        es.setDelay(request -> {
+            sent.countDown();
+            sent.await();
+            clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1100));
+        });
+
+        index(0, 2);
+
+        assertTrue(listener.await(2, 30, TimeUnit.SECONDS));
+        // both were in flight at the same time, so only the first one halves the limit
+        assertEquals(MAX_LIMIT / 2, indexer.getConcurrencyLimit());
+    }
+
+    @Test
+    public void flushesWithoutWaitingForAFullQueue() throws Exception {
+        BlockingQueue<Held> held = new LinkedBlockingQueue<>();
+        BulkSender holding = new BulkSender() {
+            @Override
+            public void bulk(BulkRequest request, ActionListener<BulkResponse> listener) {
+                held.add(new Held(request, listener));
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        // two documents per request: one in flight, one taken by the send loop waiting for the limit, one queued
+        BulkIndexer blocked = new BulkIndexer(holding, 2, Long.MAX_VALUE, 10, 1,
+                new AdaptiveLimit(1, 1, 1, TimeUnit.SECONDS), null);
+        try {
+            for (int i = 0; i < 6; i++) {
+                blocked.add(new IndexRequest("txt", "_doc", "doc" + i).source("{}", XContentType.JSON), listener);
+            }
+            Held first = held.poll(5, TimeUnit.SECONDS);
+            awaitQueued(blocked, 1);
+
+            // the periodic flush defers the batches it can't queue instead of waiting, so it runs again
+            blocked.add(new IndexRequest("txt", "_doc", "doc6").source("{}", XContentType.JSON), listener);
+            awaitQueued(blocked, 2);
+            blocked.add(new IndexRequest("txt", "_doc", "doc7").source("{}", XContentType.JSON), listener);
+            awaitQueued(blocked, 3);
+
+            first.succeed();
+            for (int i = 0; i < 4; i++) {
+                held.poll(5, TimeUnit.SECONDS).succeed();
+            }
+            assertTrue(listener.await(8, 5, TimeUnit.SECONDS));
+            for (int i = 0; i < 8; i++) {
+                assertEquals(INDEXED, listener.getOutcome("doc" + i));
+            }
+        } finally {
+            blocked.close(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void awaitQueued(BulkIndexer indexer, int requests) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (indexer.getQueuedRequests() < requests && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(requests, indexer.getQueuedRequests());
+    }
+
+    /**
+     * A bulk request the test answers itself
+     */
+    private static class Held {
+        private final BulkRequest request;
+        private final ActionListener<BulkResponse> listener;
+
+        Held(BulkRequest request, ActionListener<BulkResponse> listener) {
+            this.request = request;
+            this.listener = listener;
+        }
+
+        void succeed() {
+            BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+            for (int i = 0; i < items.length; i++) {
+                IndexRequest item = (IndexRequest) request.requests().get(i);
+                items[i] = new BulkItemResponse(i, DocWriteRequest.OpType.INDEX, new IndexResponse(
+                        new ShardId(item.index(), "_na_", 0), item.type(), item.id(), 1, 1, 1, true));
+            }
+            listener.onResponse(new BulkResponse(items, 1));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package ESTransport;
+
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeadLetterQueueTest {
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("emirates-dlq");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    private static IndexRequest request(String id) {
+        return new IndexRequest("txt", "_doc", id).source("{\"content\":\"" + id + "\"}", XContentType.JSON);
+    }
+
+    private static List<String> readIds(DeadLetterQueue queue, Path file) throws IOException {
+        List<String> ids = new ArrayList<>();
+        try (DeadLetterQueue.Reader reader = queue.read(file)) {
+            DeadLetterQueue.Record record;
+            while ((record = reader.next()) != null) {
+                assertEquals("txt", record.index);
+                assertEquals("{\"content\":\"" + record.id + "\"}", record.source.utf8ToString());
+                ids.add(record.id);
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void readsBackAppendedDocumentsAfterRotation() throws IOException {
+        DeadLetterQueue queue = new DeadLetterQueue(dir);
+        queue.append(request("a"));
+        queue.append(request("b"));
+        List<Path> first = queue.rotate();
+        queue.append(request("c"));
+        List<Path> files = queue.rotate();
+        queue.close();
+
+        assertEquals(1, first.size());
+        assertEquals(2, files.size());
+        assertEquals(first.get(0), files.get(0));
+        assertEquals(2, readIds(queue, files.get(0)).size());
+        assertEquals("c", readIds(queue, files.get(1)).get(0));
+    }
+
+    @Test
+    public void stopsAtATornRecord() throws IOException {
+        DeadLetterQueue queue = new DeadLetterQueue(dir);
+        queue.append(request("a"));
+        queue.close();
+        // the length of an index name which was never written
+        Files.write(dir.resolve("current.dlq"), new byte[]{0, 0, 0, 3, 't'}, StandardOpenOption.APPEND);
+
+        List<Path> files = queue.rotate();
+        assertEquals(1, readIds(queue, files.get(0)).size());
+    }
+
+    @Test
+    public void treatsALengthPastTheEndOfTheFileAsTorn() throws IOException {
+        DeadLetterQueue queue = new DeadLetterQueue(dir);
+        queue.append(request("a"));
+        queue.close();
+        Files.write(dir.resolve("current.dlq"), ByteBuffer.allocate(6).putInt(Integer.MAX_VALUE - 8).array(),
+                StandardOpenOption.APPEND);
+
+        List<Path> files = queue.rotate();
+        try (DeadLetterQueue.Reader reader = queue.read(files.get(0))) {
+            assertEquals("a", reader.next().id);
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void replaysTheDocumentsOfAPreviousRun() throws IOException {
+        DeadLetterQueue crashed = new DeadLetterQueue(dir);
+        crashed.append(request("a"));
+        crashed.close();
+
+        DeadLetterQueue queue = new DeadLetterQueue(dir);
+        List<Path> files = queue.rotate();
+        queue.close();
+
+        assertEquals(1, files.size());
+        assertEquals("a", readIds(queue, files.get(0)).get(0));
+    }
+
+    @Test
+    public void rotatesWithoutDocumentsIntoNoFile() throws IOException {
+        DeadLetterQueue queue = new DeadLetterQueue(dir);
+        assertTrue(queue.rotate().isEmpty());
+        queue.close();
+    }
+}
@@ -0,0 +1,190 @@
+package ESTransport;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static ESTransport.RecordingListener.DEAD_LETTERED;
+import static ESTransport.RecordingListener.FAILED;
+import static ESTransport.RecordingListener.INDEXED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Indexes through {@link ESClient} and {@link RestBulkSender} against {@link StubElasticsearch}. The retries and the
+ * dead-letter replay are sped up by the system properties set in the pom.
+ */
+public class ESClientTest {
+    private final static long TIMEOUT_SECONDS = 30;
+
+    private StubElasticsearch es;
+    private Path workDir;
+    private String userDir;
+    private final RecordingListener listener = new RecordingListener();
+
+    @Before
+    public void setUp() throws IOException {
+        es = new StubElasticsearch();
+        workDir = Files.createTempDirectory("emirates-es");
+        // the dead-letter queue is kept in the working directory
+        userDir = System.getProperty("user.dir");
+        System.setProperty("user.dir", workDir.toString());
+        ESClient.INSTANCE.initClient(new RestBulkSender(es.getHost()));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ESClient.INSTANCE.close();
+        es.close();
+        System.setProperty("user.dir", userDir);
+        deleteTree(workDir);
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path child : stream) {
+                if (Files.isDirectory(child)) {
+                    deleteTree(child);
+                } else {
+                    Files.delete(child);
+                }
+            }
+        }
+        Files.delete(dir);
+    }
+
+    private void index(String... ids) {
+        for (String id : ids) {
+            ESClient.INSTANCE.index("txt", id, new BytesArray("{\"content\":\"" + id + "\"}"), listener);
+        }
+        ESClient.INSTANCE.getBulkIndexer().flush();
+    }
+
+    private static boolean eventually(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(20);
+        }
+        return true;
+    }
+
+    private int replayFiles() throws IOException {
+        int files = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(workDir.resolve(".deadletter"), "replay-*")) {
+            for (Path ignored : stream) {
+                files++;
+            }
+        }
+        return files;
+    }
+
+    @Test
+    public void retriesThrottledDocumentsAndFailsRejectedOnes() throws InterruptedException {
+        es.setItemScript((index, id, attempt) -> id.equals("bad") ? 400 : id.equals("busy") && attempt < 2 ? 429 : 201);
+
+        index("a", "b", "busy", "bad");
+
+        assertTrue(listener.await(4, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(INDEXED, listener.getOutcome("a"));
+        assertEquals(INDEXED, listener.getOutcome("b"));
+        assertEquals(INDEXED, listener.getOutcome("busy"));
+        assertEquals(FAILED, listener.getOutcome("bad"));
+        assertEquals(3, es.getAttempts("txt", "busy"));
+        assertEquals(1, es.getAttempts("txt", "bad"));
+        assertEquals(2, ESClient.INSTANCE.getBulkIndexer().getRetries());
+    }
+
+    @Test
+    public void retriesThrottledAndTimedOutRequests() throws InterruptedException {
+        es.setRequestScript(request -> request == 0 ? 429
+                : request == 1 ? 504
+                : request == 2 ? StubElasticsearch.DROP
+                : StubElasticsearch.ITEMS);
+
+        index("a", "b", "c");
+
+        assertTrue(listener.await(3, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        for (String id : new String[]{"a", "b", "c"}) {
+            assertEquals(INDEXED, listener.getOutcome(id));
+        }
+        assertTrue(es.getRequests() >= 4);
+        assertEquals(0, ESClient.INSTANCE.getBulkIndexer().getDeadLettered());
+    }
+
+    @Test
+    public void deadLettersAfterTheRetriesAndIndexesOnReplay() throws Exception {
+        int sends = Integer.getInteger("emirates.bulk.retries", 8) + 1;
+        es.setItemScript((index, id, attempt) -> id.equals("stuck") && attempt < sends ? 429 : 201);
+
+        index("a", "stuck");
+
+        assertTrue(listener.await(2, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(INDEXED, listener.getOutcome("a"));
+        assertEquals(DEAD_LETTERED, listener.getOutcome("stuck"));
+        assertEquals(1, ESClient.INSTANCE.getBulkIndexer().getDeadLettered());
+
+        assertTrue(eventually(() -> es.isIndexed("txt", "stuck")));
+        assertTrue(eventually(() -> {
+            try {
+                return replayFiles() == 0;
+            } catch (IOException e) {
+                return false;
+            }
+        }));
+    }
+
+    @Test
+    public void indexesDocumentsRejectedOnReplayAsFailed() throws Exception {
+        int sends = Integer.getInteger("emirates.bulk.retries", 8) + 1;
+        es.setItemScript((index, id, attempt) -> !index.equals("txt") ? 201 : attempt < sends ? 429 : 400);
+
+        index("doomed");
+
+        assertTrue(listener.await(1, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(DEAD_LETTERED, listener.getOutcome("doomed"));
+        assertTrue(eventually(() -> es.isIndexed("failed", "doomed")));
+        assertFalse(es.isIndexed("txt", "doomed"));
+    }
+
+    @Test
+    public void notifiesDocumentsAddedAfterCloseOnAnotherThread() throws InterruptedException {
+        ESClient.INSTANCE.getBulkIndexer().close(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        index("late");
+
+        assertTrue(listener.await(1, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(DEAD_LETTERED, listener.getOutcome("late"));
+        assertNotEquals(Thread.currentThread(), listener.getThread("late"));
+    }
+
+    @Test
+    public void deletesDocuments() throws InterruptedException {
+        index("a", "b", "c");
+        assertTrue(listener.await(3, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        ESClient.INSTANCE.delete("txt", Arrays.asList("a", "c", "missing"));
+
+        assertTrue(eventually(() -> !es.isIndexed("txt", "a") && !es.isIndexed("txt", "c")));
+        assertTrue(es.isIndexed("txt", "b"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failsFastWithoutBulkIndexer() {
+        new ESClient().index("txt", "a", new BytesArray("{}"), listener);
+    }
+}
@@ -0,0 +1,61 @@
+package ESTransport;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the outcome of every document and the thread it was reported on
+ */
+class RecordingListener implements IndexListener {
+    final static String INDEXED = "indexed";
+    final static String FAILED = "failed";
+    final static String DEAD_LETTERED = "deadLettered";
+
+    private final Map<String, String> outcomes = new ConcurrentHashMap<>();
+    private final Map<String, Thread> threads = new ConcurrentHashMap<>();
+
+    @Override
+    public void onIndexed(String index, String id) {
+        settle(id, INDEXED);
+    }
+
+    @Override
+    public void onFailure(String index, String id, Throwable cause) {
+        settle(id, FAILED);
+    }
+
+    @Override
+    public void onDeadLettered(String index, String id) {
+        settle(id, DEAD_LETTERED);
+    }
+
+    private synchronized void settle(String id, String outcome) {
+        threads.put(id, Thread.currentThread());
+        outcomes.put(id, outcome);
+        notifyAll();
+    }
+
+    String getOutcome(String id) {
+        return outcomes.get(id);
+    }
+
+    Thread getThread(String id) {
+        return threads.get(id);
+    }
+
+    /**
+     * Waits until the given number of documents is settled
+     */
+    synchronized boolean await(int documents, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (outcomes.size() < documents) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+}
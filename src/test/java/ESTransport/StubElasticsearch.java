@@ -0,0 +1,250 @@
+package ESTransport;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * An in-process _bulk endpoint. Each request is answered as scripted, either as a whole (e.g. 429 or a dropped
+ * connection) or document by document. Deletes always succeed and remove the document if it was indexed.
+ */
+class StubElasticsearch implements Closeable {
+    // answers the request document by document
+    final static int ITEMS = 200;
+    // closes the connection without answering, like a timed out proxy
+    final static int DROP = 0;
+
+    interface RequestScript {
+        /**
+         * @param request number of the request, starting at 0
+         * @return the status of the whole request, {@link #ITEMS} or {@link #DROP}
+         */
+        int status(int request);
+    }
+
+    interface Delay {
+        /**
+         * Called before the request is answered, e.g. to sleep or to move a fake clock
+         */
+        void before(int request) throws InterruptedException;
+    }
+
+    interface ItemScript {
+        /**
+         * @param attempt how many times the document was sent before
+         * @return the status of the document, 201 if indexed
+         */
+        int status(String index, String id, int attempt);
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    // index/id, by the times it was sent and indexed
+    private final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> indexed = new ConcurrentHashMap<>();
+
+    private volatile RequestScript requestScript = request -> ITEMS;
+    private volatile ItemScript itemScript = (index, id, attempt) -> 201;
+    private volatile Delay delay = request -> { };
+
+    StubElasticsearch() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/_bulk", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    HttpHost getHost() {
+        return new HttpHost(server.getAddress().getHostString(), server.getAddress().getPort(), "http");
+    }
+
+    void setRequestScript(RequestScript requestScript) {
+        this.requestScript = requestScript;
+    }
+
+    void setItemScript(ItemScript itemScript) {
+        this.itemScript = itemScript;
+    }
+
+    void setLatency(long latencyMillis) {
+        setDelay(request -> Thread.sleep(latencyMillis));
+    }
+
+    void setDelay(Delay delay) {
+        this.delay = delay;
+    }
+
+    int getRequests() {
+        return requests.get();
+    }
+
+    int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    int getAttempts(String index, String id) {
+        AtomicInteger count = attempts.get(index + "/" + id);
+        return count != null ? count.get() : 0;
+    }
+
+    boolean isIndexed(String index, String id) {
+        return indexed.containsKey(index + "/" + id);
+    }
+
+    int getIndexed() {
+        return indexed.size();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+            byte[] body = readFully(exchange.getRequestBody());
+            int request = requests.getAndIncrement();
+            delay.before(request);
+
+            int status = requestScript.status(request);
+            if (status == DROP) {
+                return;
+            }
+            if (status != ITEMS) {
+                respond(exchange, status, BytesReference.bytes(error(status, "scripted")));
+                return;
+            }
+            respond(exchange, 200, bulkResponse(body));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            inFlight.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    private BytesReference bulkResponse(byte[] body) throws IOException {
+        String[] lines = new String(body, StandardCharsets.UTF_8).split("\n");
+        List<String[]> documents = new ArrayList<>();
+        List<Integer> statuses = new ArrayList<>();
+        for (int i = 0; i < lines.length; i += 2) {
+            Map<String, Object> line = XContentHelper.convertToMap(new BytesArray(lines[i]), false, XContentType.JSON).v2();
+            @SuppressWarnings("unchecked")
+            Map<String, Object> action = (Map<String, Object>) line.get(line.containsKey("delete") ? "delete" : "index");
+            String index = (String) action.get("_index");
+            String id = (String) action.get("_id");
+            String key = index + "/" + id;
+
+            if (line.containsKey("delete")) {
+                // no source line follows
+                i--;
+                documents.add(new String[]{index, id, "delete"});
+                statuses.add(indexed.remove(key) != null ? 200 : 404);
+                continue;
+            }
+
+            int attempt = attempts.computeIfAbsent(key, k -> new AtomicInteger()).getAndIncrement();
+            int status = itemScript.status(index, id, attempt);
+            if (status == 201) {
+                indexed.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+            }
+            documents.add(new String[]{index, id});
+            statuses.add(status);
+        }
+
+        XContentBuilder response = jsonBuilder().startObject()
+                .field("took", 1)
+                .field("errors", statuses.stream().anyMatch(status -> status != 201 && status != 200 && status != 404))
+                .startArray("items");
+        for (int i = 0; i < documents.size(); i++) {
+            int status = statuses.get(i);
+            if (documents.get(i).length == 3) {
+                response.startObject().startObject("delete")
+                        .field("_index", documents.get(i)[0])
+                        .field("_type", "_doc")
+                        .field("_id", documents.get(i)[1])
+                        .field("status", status)
+                        .field("_version", 2)
+                        .field("result", status == 200 ? "deleted" : "not_found")
+                        .startObject("_shards").field("total", 1).field("successful", 1).field("failed", 0).endObject()
+                        .field("_seq_no", 1)
+                        .field("_primary_term", 1)
+                        .endObject().endObject();
+                continue;
+            }
+            response.startObject().startObject("index")
+                    .field("_index", documents.get(i)[0])
+                    .field("_type", "_doc")
+                    .field("_id", documents.get(i)[1])
+                    .field("status", status);
+            if (status == 201) {
+                response.field("_version", 1)
+                        .field("result", "created")
+                        .startObject("_shards").field("total", 1).field("successful", 1).field("failed", 0).endObject()
+                        .field("_seq_no", 0)
+                        .field("_primary_term", 1);
+            } else {
+                response.startObject("error")
+                        .field("type", status == 429 ? "es_rejected_execution_exception" : "mapper_parsing_exception")
+                        .field("reason", "scripted " + status)
+                        .endObject();
+            }
+            response.endObject().endObject();
+        }
+        return BytesReference.bytes(response.endArray().endObject());
+    }
+
+    private static XContentBuilder error(int status, String reason) throws IOException {
+        return jsonBuilder().startObject()
+                .startObject("error").field("type", "scripted_exception").field("reason", reason).endObject()
+                .field("status", status)
+                .endObject();
+    }
+
+    private static void respond(HttpExchange exchange, int status, BytesReference body) throws IOException {
+        byte[] bytes = BytesReference.toBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,170 @@
+package MonitoringThreads;
+
+import ESTransport.BulkSender;
+import ESTransport.ESClient;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Notifies {@link ChildDocuments} by hand and records the deletes it sends through {@link ESClient}
+ */
+public class ChildDocumentsTest {
+    private final List<String> deleted = Collections.synchronizedList(new ArrayList<>());
+    private final List<Integer> requestSizes = Collections.synchronizedList(new ArrayList<>());
+    private Path workDir;
+    private String userDir;
+
+    @Before
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("emirates-children");
+        // the dead-letter queue is kept in the working directory
+        userDir = System.getProperty("user.dir");
+        System.setProperty("user.dir", workDir.toString());
+        ESClient.INSTANCE.initClient(new BulkSender() {
+            @Override
+            public void bulk(BulkRequest request, ActionListener<BulkResponse> listener) {
+                for (DocWriteRequest<?> docRequest : request.requests()) {
+                    assertEquals(DocWriteRequest.OpType.DELETE, docRequest.opType());
+                    deleted.add(docRequest.index() + "/" + docRequest.id());
+                }
+                requestSizes.add(request.numberOfActions());
+                listener.onResponse(new BulkResponse(new BulkItemResponse[0], 0));
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ESClient.INSTANCE.close();
+        System.setProperty("user.dir", userDir);
+        deleteTree(workDir);
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path child : stream) {
+                if (Files.isDirectory(child)) {
+                    deleteTree(child);
+                } else {
+                    Files.delete(child);
+                }
+            }
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void deletesTheIndexedChildrenWhenDiscarded() {
+        ChildDocuments children = new ChildDocuments();
+        children.handedOver();
+        children.handedOver();
+        children.handedOver();
+        children.onIndexed("txt", "a.txt#0");
+        children.onFailure("txt", "a.txt#1", new IllegalStateException("rejected"));
+        children.onIndexed("txt", "a.txt#2");
+
+        children.discard();
+        assertEquals(Arrays.asList("txt/a.txt#0", "txt/a.txt#2"), deleted);
+    }
+
+    @Test
+    public void waitsForTheChildrenInFlight() {
+        ChildDocuments children = new ChildDocuments();
+        children.handedOver();
+        children.handedOver();
+        children.onIndexed("txt", "a.txt#0");
+
+        children.discard();
+        assertTrue(deleted.isEmpty());
+
+        // deleting it before would let it be indexed afterwards
+        children.onIndexed("txt", "a.txt#1");
+        assertEquals(Arrays.asList("txt/a.txt#0", "txt/a.txt#1"), deleted);
+    }
+
+    @Test
+    public void keepsTheChildrenOfASuccessfulParse() {
+        ChildDocuments children = new ChildDocuments();
+        children.handedOver();
+        children.onIndexed("txt", "a.txt#0");
+
+        assertTrue(deleted.isEmpty());
+    }
+
+    @Test
+    public void deletesTheChildrenOfNestedParses() {
+        ChildDocuments entries = new ChildDocuments();
+        ChildDocuments entryChunks = new ChildDocuments(entries);
+        ChildDocuments otherChunks = new ChildDocuments(entries);
+        entries.handedOver();
+        entries.onIndexed("archive", "a.zip!/b.txt");
+        entryChunks.handedOver();
+        entryChunks.onIndexed("archive", "a.zip!/b.txt#0");
+        otherChunks.handedOver();
+
+        entries.discard();
+        assertEquals(Arrays.asList("archive/a.zip!/b.txt", "archive/a.zip!/b.txt#0"), deleted);
+
+        otherChunks.onIndexed("archive", "a.zip!/c.txt#0");
+        assertEquals(Arrays.asList("archive/a.zip!/b.txt", "archive/a.zip!/b.txt#0", "archive/a.zip!/c.txt#0"), deleted);
+    }
+
+    @Test
+    public void keepsTheSiblingsOfADiscardedNestedParse() {
+        ChildDocuments entries = new ChildDocuments();
+        ChildDocuments brokenEntry = new ChildDocuments(entries);
+        entries.handedOver();
+        entries.onIndexed("archive", "a.zip!/b.txt");
+        brokenEntry.handedOver();
+        brokenEntry.onIndexed("archive", "a.zip!/c.zip!/d.txt");
+
+        brokenEntry.discard();
+        assertEquals(Collections.singletonList("archive/a.zip!/c.zip!/d.txt"), deleted);
+    }
+
+    @Test
+    public void dropsChildrenHandedOverAfterTheDiscard() {
+        ChildDocuments entries = new ChildDocuments();
+        ChildDocuments entryChunks = new ChildDocuments(entries);
+
+        entries.discard();
+        assertFalse(entries.handedOver());
+        assertFalse(entryChunks.handedOver());
+    }
+
+    @Test
+    public void deletesInBatches() {
+        ChildDocuments children = new ChildDocuments();
+        for (int i = 0; i < 2500; i++) {
+            children.handedOver();
+            children.onIndexed("txt", "a.txt#" + i);
+        }
+
+        children.discard();
+        assertEquals(Arrays.asList(1000, 1000, 500), requestSizes);
+        assertEquals("txt/a.txt#2499", deleted.get(2499));
+    }
+}
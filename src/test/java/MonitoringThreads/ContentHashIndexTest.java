@@ -0,0 +1,114 @@
+package MonitoringThreads;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ContentHashIndexTest {
+    private Path dir;
+    private Path indexFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("emirates-hashes");
+        indexFile = dir.resolve(".txt.hashes");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    private ContentHashIndex.ContentHash hash(String name, String content) throws IOException {
+        Path file = dir.resolve(name);
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        return ContentHashIndex.hash(file);
+    }
+
+    private static byte[] strong(int seed) {
+        byte[] strong = new byte[32];
+        strong[0] = (byte) seed;
+        return strong;
+    }
+
+    @Test
+    public void findsTheSameContentUnderAnotherName() throws IOException {
+        ContentHashIndex index = new ContentHashIndex(indexFile);
+        index.add(hash("a.txt", "some text"), "txt/a.txt");
+
+        assertEquals("txt/a.txt", index.lookup(hash("b.txt", "some text")));
+        assertNull(index.lookup(hash("c.txt", "other text")));
+    }
+
+    @Test
+    public void tellsContentsWithTheSameKeyApartByTheirSha() throws IOException {
+        ContentHashIndex index = new ContentHashIndex(indexFile);
+        index.add(new ContentHashIndex.ContentHash(42L, strong(1)), "txt/a.txt");
+        index.add(new ContentHashIndex.ContentHash(42L, strong(2)), "txt/b.txt");
+
+        assertEquals("txt/a.txt", index.lookup(new ContentHashIndex.ContentHash(42L, strong(1))));
+        assertEquals("txt/b.txt", index.lookup(new ContentHashIndex.ContentHash(42L, strong(2))));
+        assertNull(index.lookup(new ContentHashIndex.ContentHash(42L, strong(3))));
+    }
+
+    @Test
+    public void reloadsOnlyPersistedEntries() throws IOException {
+        ContentHashIndex index = new ContentHashIndex(indexFile);
+        ContentHashIndex.ContentHash indexed = hash("a.txt", "indexed");
+        ContentHashIndex.ContentHash pending = hash("b.txt", "pending");
+        index.add(indexed, "txt/a.txt");
+        index.add(pending, "txt/b.txt");
+        index.persist(indexed, "txt/a.txt");
+
+        ContentHashIndex reloaded = new ContentHashIndex(indexFile);
+        assertEquals("txt/a.txt", reloaded.lookup(indexed));
+        assertNull(reloaded.lookup(pending));
+    }
+
+    @Test
+    public void keepsARemovedEntryRemovedAfterReload() throws IOException {
+        ContentHashIndex index = new ContentHashIndex(indexFile);
+        ContentHashIndex.ContentHash first = new ContentHashIndex.ContentHash(7L, strong(1));
+        ContentHashIndex.ContentHash second = new ContentHashIndex.ContentHash(7L, strong(2));
+        index.persist(first, "txt/a.txt");
+        index.persist(second, "txt/b.txt");
+        index.remove(first, "txt/a.txt");
+        assertNull(index.lookup(first));
+
+        ContentHashIndex reloaded = new ContentHashIndex(indexFile);
+        assertNull(reloaded.lookup(first));
+        assertEquals("txt/b.txt", reloaded.lookup(second));
+    }
+
+    @Test
+    public void dropsATornLastRecord() throws IOException {
+        ContentHashIndex index = new ContentHashIndex(indexFile);
+        ContentHashIndex.ContentHash first = hash("a.txt", "first");
+        index.persist(first, "txt/a.txt");
+        // type and half a key of a record which was never completed
+        Files.write(indexFile, new byte[]{1, 0, 0, 0, 5}, StandardOpenOption.APPEND);
+
+        ContentHashIndex reloaded = new ContentHashIndex(indexFile);
+        ContentHashIndex.ContentHash second = hash("b.txt", "second");
+        reloaded.persist(second, "txt/b.txt");
+
+        ContentHashIndex again = new ContentHashIndex(indexFile);
+        assertEquals("txt/a.txt", again.lookup(first));
+        assertEquals("txt/b.txt", again.lookup(second));
+    }
+}
@@ -0,0 +1,61 @@
+package MonitoringThreads;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+
+public class ShardedProcessedStoreTest {
+    private final static String SHA = "ab" + String.join("", Collections.nCopies(31, "00"));
+
+    private Path folder;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("emirates-sharded");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static ContentHashIndex.ContentHash hash() {
+        byte[] strong = new byte[32];
+        strong[0] = (byte) 0xab;
+        return new ContentHashIndex.ContentHash(0x1234L, strong);
+    }
+
+    @Test
+    public void namesAFileByItsKey() throws IOException {
+        Path dest = new ShardedProcessedStore(folder).destination(folder.resolve("a.txt"), hash(), path -> false);
+
+        assertEquals(folder.resolve("00/00/0000000000001234.txt"), dest);
+    }
+
+    @Test
+    public void fallsBackToTheShaAndThenToASuffix() throws IOException {
+        ShardedProcessedStore store = new ShardedProcessedStore(folder);
+        Set<Path> taken = new HashSet<>();
+        taken.add(folder.resolve("00/00/0000000000001234.txt"));
+
+        Path bySha = store.destination(folder.resolve("a.txt"), hash(), taken::contains);
+        assertEquals(folder.resolve("ab/00/" + SHA + ".txt"), bySha);
+
+        taken.add(bySha);
+        Path suffixed = store.destination(folder.resolve("a.txt"), hash(), taken::contains);
+        assertEquals(folder.resolve("ab/00/" + SHA + "_1.txt"), suffixed);
+    }
+}
@@ -0,0 +1,186 @@
+package MonitoringThreads;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StabilityTrackerTest {
+    // below the 60 s cap on the retry delay
+    private final static long QUIET_SECONDS = 10;
+
+    private final AtomicLong clock = new AtomicLong();
+    private final List<Path> stored = new ArrayList<>();
+    // attempts to store which fail before the next one succeeds
+    private final AtomicInteger failures = new AtomicInteger();
+    private Path dir;
+    private StabilityTracker tracker;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("emirates-stability");
+        // a tick per second, stores on the ticking thread
+        tracker = new StabilityTracker((file, observedAt) -> {
+            if (failures.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                return false;
+            }
+            stored.add(file);
+            return true;
+        }, "*.tmp, ~*", TimeUnit.SECONDS.toMillis(QUIET_SECONDS), 1000, 10, clock::get, Runnable::run);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    private Path write(String name) throws IOException {
+        Path file = dir.resolve(name);
+        Files.write(file, "partial".getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    /**
+     * Moves the clock and the wheel forward a tick at a time
+     */
+    private void advance(long seconds) {
+        for (long i = 0; i < seconds; i++) {
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+            tracker.tick();
+        }
+    }
+
+    @Test
+    public void storesAFileOnceItWasQuietForTheQuietPeriod() throws Exception {
+        Path file = write("a.txt");
+        tracker.observe(file);
+        assertEquals(1, tracker.size());
+
+        advance(QUIET_SECONDS - 1);
+        assertTrue(stored.isEmpty());
+
+        advance(1);
+        assertEquals(Collections.singletonList(file), stored);
+        assertEquals(0, tracker.size());
+    }
+
+    @Test
+    public void restartsTheQuietPeriodOnEveryEvent() throws Exception {
+        Path file = write("a.txt");
+        tracker.observe(file);
+        advance(QUIET_SECONDS / 2);
+        tracker.observe(file);
+
+        advance(QUIET_SECONDS - 1);
+        assertTrue(stored.isEmpty());
+
+        advance(1);
+        assertEquals(Collections.singletonList(file), stored);
+    }
+
+    @Test
+    public void waitsWhileTheFileKeepsChangingWithoutEvents() throws Exception {
+        Path file = write("a.txt");
+        tracker.observe(file);
+        Files.write(file, " and more".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        advance(2 * QUIET_SECONDS - 1);
+        assertTrue(stored.isEmpty());
+
+        advance(1);
+        assertEquals(Collections.singletonList(file), stored);
+    }
+
+    @Test
+    public void waitsLongerThanAWheelTurn() throws Exception {
+        StabilityTracker slow = new StabilityTracker((file, observedAt) -> stored.add(file), "",
+                TimeUnit.SECONDS.toMillis(1000), 1000, 10, clock::get, Runnable::run);
+        Path file = write("a.txt");
+        slow.observe(file);
+
+        for (int i = 0; i < 999; i++) {
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+            slow.tick();
+        }
+        assertTrue(stored.isEmpty());
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        slow.tick();
+        assertEquals(Collections.singletonList(file), stored);
+    }
+
+    @Test
+    public void storesAFileQuietForLongRightAway() throws Exception {
+        Path file = write("a.txt");
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)));
+
+        tracker.observe(file);
+        assertEquals(Collections.singletonList(file), stored);
+        assertEquals(0, tracker.size());
+    }
+
+    @Test
+    public void triesAgainWaitingTwiceAsLongEachTime() throws Exception {
+        failures.set(2);
+        Path file = write("a.txt");
+        tracker.observe(file);
+
+        // fails after the quiet period, then after another one, then after two more
+        advance(QUIET_SECONDS + QUIET_SECONDS + 2 * QUIET_SECONDS - 1);
+        assertTrue(stored.isEmpty());
+        assertEquals(1, tracker.size());
+
+        advance(1);
+        assertEquals(Collections.singletonList(file), stored);
+        assertEquals(0, tracker.size());
+    }
+
+    @Test
+    public void forgetsADeletedFile() throws Exception {
+        Path file = write("a.txt");
+        tracker.observe(file);
+        Files.delete(file);
+
+        advance(QUIET_SECONDS);
+        assertTrue(stored.isEmpty());
+        assertEquals(0, tracker.size());
+    }
+
+    @Test
+    public void ignoresTemporaryFiles() throws Exception {
+        Path temporary = write("a.txt.tmp");
+        Path lock = write("~a.txt");
+        assertTrue(tracker.isIgnored(temporary));
+        assertTrue(tracker.isIgnored(lock));
+        assertFalse(tracker.isIgnored(dir.resolve("a.txt")));
+
+        tracker.observe(temporary);
+        tracker.observe(lock);
+        assertEquals(0, tracker.size());
+
+        advance(QUIET_SECONDS);
+        assertTrue(stored.isEmpty());
+    }
+}
@@ -0,0 +1,126 @@
+package MonitoringThreads;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WorkJournalTest {
+    // the tests compact and sync on their own, the background thread never runs
+    private final static long SYNC_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private Path dir;
+    private Path journalFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("emirates-journal");
+        journalFile = dir.resolve(".txt.journal");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    private WorkJournal open(int mappedSize) throws IOException {
+        return new WorkJournal(journalFile, mappedSize, SYNC_MILLIS);
+    }
+
+    @Test
+    public void reloadsUnacknowledgedFilesWithTheirNames() throws IOException {
+        WorkJournal journal = open(4096);
+        journal.enqueue(Paths.get("processed/a"), "a.txt");
+        journal.enqueue(Paths.get("processed/b"), "b.txt");
+        journal.enqueue(Paths.get("processed/c"), "c.txt");
+        journal.ack(Paths.get("processed/b"));
+
+        assertEquals(2, journal.size());
+        assertTrue(journal.contains(Paths.get("processed/a")));
+        assertFalse(journal.contains(Paths.get("processed/b")));
+
+        WorkJournal reloaded = open(4096);
+        assertEquals(Arrays.asList(Paths.get("processed/a"), Paths.get("processed/c")), reloaded.unacknowledged());
+        assertEquals("a.txt", reloaded.originalName(Paths.get("processed/a")));
+        assertEquals("c.txt", reloaded.originalName(Paths.get("processed/c")));
+        assertNull(reloaded.originalName(Paths.get("processed/b")));
+    }
+
+    @Test
+    public void compactsInsteadOfGrowing() throws IOException {
+        WorkJournal journal = open(256);
+        journal.enqueue(Paths.get("processed/kept"), "kept.txt");
+        // about 40 bytes per enqueue and ack, far more than the mapping holds
+        for (int i = 0; i < 100; i++) {
+            Path path = Paths.get("processed/file" + i);
+            journal.enqueue(path, "file" + i + ".txt");
+            journal.ack(path);
+        }
+        journal.enqueue(Paths.get("processed/last"), "last.txt");
+
+        assertEquals(256, Files.size(journalFile));
+        assertFalse(Files.exists(journalFile.resolveSibling(journalFile.getFileName() + ".compact")));
+
+        WorkJournal reloaded = open(256);
+        assertEquals(Arrays.asList(Paths.get("processed/kept"), Paths.get("processed/last")),
+                reloaded.unacknowledged());
+        assertEquals("kept.txt", reloaded.originalName(Paths.get("processed/kept")));
+    }
+
+    @Test
+    public void growsWhenThePendingFilesDoNotFit() throws IOException {
+        WorkJournal journal = open(256);
+        for (int i = 0; i < 20; i++) {
+            journal.enqueue(Paths.get("processed/file" + i), "file" + i + ".txt");
+        }
+
+        assertTrue(Files.size(journalFile) > 256);
+        assertEquals(20, open(256).size());
+    }
+
+    @Test
+    public void ignoresATornLastRecord() throws IOException {
+        WorkJournal journal = open(4096);
+        journal.enqueue(Paths.get("processed/a"), "a.txt");
+
+        // a record whose payload was partly written when the process died, its type is still unset
+        int end = 1 + 2 + "processed/a".length() + 2 + "a.txt".length();
+        try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+            byte[] partial = "processed/b".getBytes(StandardCharsets.UTF_8);
+            ByteBuffer torn = ByteBuffer.allocate(3 + partial.length);
+            torn.put((byte) 0).putShort((short) 40).put(partial).flip();
+            channel.write(torn, end);
+        }
+
+        WorkJournal recovered = open(4096);
+        assertEquals(Collections.singletonList(Paths.get("processed/a")), recovered.unacknowledged());
+
+        // the next record overwrites the torn one
+        recovered.enqueue(Paths.get("processed/c"), "c.txt");
+        WorkJournal reloaded = open(4096);
+        assertEquals(Arrays.asList(Paths.get("processed/a"), Paths.get("processed/c")), reloaded.unacknowledged());
+        assertEquals("c.txt", reloaded.originalName(Paths.get("processed/c")));
+    }
+}
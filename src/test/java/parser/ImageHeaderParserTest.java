@@ -0,0 +1,115 @@
+package parser;
+
+import org.apache.tika.exception.TikaException;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.metadata.TIFF;
+import org.apache.tika.metadata.TikaCoreProperties;
+import org.apache.tika.parser.ParseContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The fixtures carry Make "Emirates", a Model naming their format, and an XMP packet with a title and a creator.
+ * The TIFF and HEIF ones keep their metadata after 80 KB of image data, beyond the first window read.
+ */
+public class ImageHeaderParserTest {
+    private Path tmp;
+
+    @Before
+    public void setUp() throws IOException {
+        tmp = Files.createTempFile("emirates-image", ".bin");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.delete(tmp);
+    }
+
+    private static Path fixture(String name) throws URISyntaxException {
+        return Paths.get(ImageHeaderParserTest.class.getResource("/images/" + name).toURI());
+    }
+
+    private static Metadata parse(Path file) throws Exception {
+        Metadata metadata = new Metadata();
+        try (InputStream stream = TikaInputStream.get(file)) {
+            new ImageHeaderParser().parse(stream, new DefaultHandler(), metadata, new ParseContext());
+        }
+        return metadata;
+    }
+
+    private static void assertExifAndXmp(String fixture, String model) throws Exception {
+        Metadata metadata = parse(fixture(fixture));
+        assertEquals("Emirates", metadata.get(TIFF.EQUIPMENT_MAKE));
+        assertEquals(model, metadata.get(TIFF.EQUIPMENT_MODEL));
+        assertEquals("Emirates fixture", metadata.get(TikaCoreProperties.TITLE));
+        assertEquals("Jane Doe", metadata.get(TikaCoreProperties.CREATOR));
+    }
+
+    @Test
+    public void readsJpeg() throws Exception {
+        assertExifAndXmp("exif-xmp.jpg", "JPEG Camera");
+    }
+
+    @Test
+    public void readsTiffWithItsDirectoryAfterTheImage() throws Exception {
+        assertExifAndXmp("exif-xmp.tif", "TIFF Camera");
+    }
+
+    @Test
+    public void readsWebp() throws Exception {
+        assertExifAndXmp("exif-xmp.webp", "WebP Camera");
+    }
+
+    @Test
+    public void readsHeifItemsWithANameBeforeTheContentType() throws Exception {
+        assertExifAndXmp("exif-xmp.heic", "HEIF Camera");
+    }
+
+    @Test
+    public void readsPngXmp() throws Exception {
+        // metadata-extractor reads no Exif from PNG
+        Metadata metadata = parse(fixture("xmp.png"));
+        assertNull(metadata.get(TIFF.EQUIPMENT_MAKE));
+        assertEquals("Emirates fixture", metadata.get(TikaCoreProperties.TITLE));
+        assertEquals("Jane Doe", metadata.get(TikaCoreProperties.CREATOR));
+    }
+
+    @Test
+    public void recognisesHeifByItsBrand() throws Exception {
+        assertTrue(ImageHeaderParser.isHeif(ByteBuffer.wrap(Files.readAllBytes(fixture("exif-xmp.heic")), 0, 32)));
+        assertFalse(ImageHeaderParser.isHeif(ByteBuffer.wrap(Files.readAllBytes(fixture("exif-xmp.jpg")), 0, 32)));
+    }
+
+    @Test
+    public void readsNothingBeyondTheEndOfATruncatedImage() throws Exception {
+        // the directory the TIFF header points to and the HEIF items are cut off
+        Files.write(tmp, Arrays.copyOf(Files.readAllBytes(fixture("exif-xmp.tif")), 1024));
+        assertNull(parse(tmp).get(TIFF.EQUIPMENT_MAKE));
+        Files.write(tmp, Arrays.copyOf(Files.readAllBytes(fixture("exif-xmp.heic")), 1024));
+        assertNull(parse(tmp).get(TIFF.EQUIPMENT_MAKE));
+    }
+
+    @Test(expected = TikaException.class)
+    public void rejectsAnUnsupportedFormat() throws Exception {
+        Files.write(tmp, "not an image".getBytes(StandardCharsets.UTF_8));
+        parse(tmp);
+    }
+}